@@ -5,10 +5,8 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import com.google.common.collect.ImmutableList;
-import org.simpleds.functions.EntityToPropertyFunction;
 
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Key;
@@ -16,7 +14,6 @@ import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
 
 /**
  * A limited list of results with the cursor to resume the query where it was stopped.
@@ -47,15 +44,20 @@ public class CursorList<J> {
 	 * Load the list of related entities.
 	 * @param propertyName the name of the properties to be used as Key
 	 * @return the list of retrieved entities
+	 * @see #prefetch(String...)
 	 */
 	public Map<Key, Object> loadRelatedEntities(String... propertyName) {
-		EntityManager entityManager = EntityManagerFactory.getEntityManager();
-		Class<J> persistentClass = (Class<J>) query.getClassMetadata().getPersistentClass();
-		Set<Key> keys = Sets.newHashSet();
-		for (String p : propertyName) {
-			keys.addAll(Collections2.transform(data, new EntityToPropertyFunction(persistentClass, p)));
-		}
-		return entityManager.get(keys);
+		return prefetch(propertyName).asMap();
+	}
+
+	/**
+	 * Retrieve the entities referenced by the data of this list. 
+	 * @param paths the property paths to follow, e.g. "owner", "owner.company" or "tags"
+	 * @return the retrieved entities
+	 * @see EntityManager#prefetch(Iterable, String...)
+	 */
+	public RelatedEntities prefetch(String... paths) {
+		return EntityManagerFactory.getEntityManager().prefetch(data, paths);
 	}
 
     /**
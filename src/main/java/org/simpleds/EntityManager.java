@@ -3,12 +3,14 @@ package org.simpleds;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import org.simpleds.annotations.Cacheable;
 import org.simpleds.cache.CacheManager;
 import org.simpleds.exception.EntityNotFoundException;
 import org.simpleds.metadata.ClassMetadata;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
@@ -105,6 +107,37 @@ public interface EntityManager {
 	 * @param javaObjects the Collection of java objects to store
 	 */
 	void put(Transaction transaction, Key parentKey, Collection<?> javaObjects);
+	
+	/**
+	 * Asynchronously persists a java object to the datastore. The key will be assigned to the java object, 
+	 * and the entity stored in the cache, when the returned {@link Future} is resolved. Any cached copy is evicted
+	 * before returning, even if the Future is never resolved, but the query cache is only invalidated once the Future 
+	 * is resolved.
+	 * The @Version attribute, if any, is checked before returning: the current version is retrieved asynchronously
+	 * while the instance is converted, and the entity is stored once it arrives.
+	 * @param javaObject the instance to persist.
+	 * @return the allocated/existing key
+	 */
+	Future<Key> putAsync(Object javaObject);
+	
+	/**
+	 * Asynchronously persists a java object to the datastore. 
+	 * @param transaction the transaction instance to use.  May be null.
+	 * @param javaObject the instance to persist.
+	 * @return the allocated/existing key
+	 * @see #putAsync(Object)
+	 */
+	Future<Key> putAsync(Transaction transaction, Object javaObject);
+	
+	/**
+	 * Asynchronously persists a java object to the datastore. 
+	 * @param transaction the transaction instance to use.  May be null.
+	 * @param parentKey the parent entity key to use while generating the persistent entity key. May be null.
+	 * @param javaObject the instance to persist.
+	 * @return the allocated/existing key
+	 * @see #putAsync(Object)
+	 */
+	Future<Key> putAsync(Transaction transaction, Key parentKey, Object javaObject);
 
 	/**
 	 * Return a persistent java instance by key
@@ -151,6 +184,64 @@ public interface EntityManager {
 	 */
 	<T> Map<Key, T> get(Transaction transaction, Iterable<Key> keys);
 	
+	/**
+	 * Return a collection of persistent entities, by key. The datastore is queried for all keys 
+	 * at the same time that the cache is checked, and the datastore result is used for any key 
+	 * that is not found in the cache. This trades additional datastore reads for lower latency.
+	 * This is the default behavior for classes marked as {@link Cacheable#speculative()}.
+	 * @param keys the keys of the persistent entities to retrieve
+	 * @return a Map of retrieved entities. Entities that could not be found will not be included.
+	 */
+	<T> Map<Key, T> getSpeculative(Iterable<Key> keys);
+	
+	/**
+	 * Retrieve the entities referenced by the provided persistent instances. Each path is a property 
+	 * name, or a dot-separated list of property names to follow references in the retrieved entities 
+	 * (e.g. "owner.company"). Properties may contain a {@link Key} or a collection of Keys.
+	 * All the entities at the same depth are retrieved using a single batch get, which will use the cache.
+	 * @param javaObjects the persistent instances that contain the referenced keys
+	 * @param paths the paths of properties to follow
+	 * @return all the retrieved entities. Entities that could not be found will not be included.
+	 */
+	RelatedEntities prefetch(Iterable<?> javaObjects, String... paths);
+	
+	/**
+	 * Asynchronously return a persistent java instance by key. The cache is checked before returning,
+	 * and the retrieved value will be stored in the cache when the returned {@link Future} is resolved. 
+	 * @param key the key of the persistent entity to retrieve
+	 * @return the persistent java instance. If the entity could not be found, the {@link Future} will 
+	 * throw an ExecutionException caused by {@link EntityNotFoundException}.
+	 */
+	<T> Future<T> getAsync(Key key);
+	
+	/**
+	 * Asynchronously return a persistent java instance by key. If transaction is not null any {@link Cacheable}
+	 * settings will be ignored. 
+	 * @param transaction the transaction instance to use. May be null.
+	 * @param key the key of the persistent entity to retrieve
+	 * @return the persistent java instance
+	 * @see #getAsync(Key)
+	 */
+	<T> Future<T> getAsync(Transaction transaction, Key key);
+	
+	/**
+	 * Asynchronously return a collection of persistent entities, by key. The cache is checked before returning, 
+	 * and the retrieved values will be stored in the cache when the returned {@link Future} is resolved. 
+	 * @param keys the keys of the persistent entities to retrieve
+	 * @return a Map of retrieved entities. Entities that could not be found will not be included.
+	 */
+	<T> Future<Map<Key, T>> getAsync(Iterable<Key> keys);
+	
+	/**
+	 * Asynchronously return a collection of persistent entities. If transaction is not null any {@link Cacheable}
+	 * settings will be ignored. 
+	 * @param transaction the transaction instance to use.  May be null.
+	 * @param keys the keys of the persistent entities to retrieve
+	 * @return a Map of retrieved entities. Entities that could not be found will not be included.
+	 * @see #getAsync(Iterable)
+	 */
+	<T> Future<Map<Key, T>> getAsync(Transaction transaction, Iterable<Key> keys);
+	
 	/**
 	 * Delete multiple instances from the Datastore. Cached keys will also be removed from memcache.
 	 * @param keys the keys to delete. Notice that they can reference different entity kinds.
@@ -176,6 +267,52 @@ public interface EntityManager {
 	 * @param keys the keys to delete. Notice that they can reference different entity kinds.
 	 */
 	void delete(Transaction transaction, Iterable<Key> keys);
+	
+	/**
+	 * Asynchronously delete multiple instances from the Datastore. Cached keys are removed before returning.
+	 * @param keys the keys to delete. Notice that they can reference different entity kinds.
+	 */
+	Future<Void> deleteAsync(Key... keys);
+	
+	/**
+	 * Asynchronously delete multiple instances from the Datastore. Cached keys are removed before returning.
+	 * @param keys the keys to delete. Notice that they can reference different entity kinds.
+	 */
+	Future<Void> deleteAsync(Iterable<Key> keys);
+	
+	/**
+	 * Asynchronously delete multiple instances from the Datastore. Cached keys are removed before returning.
+	 * @param transaction the transaction instance to use.  May be null.
+	 * @param keys the keys to delete. Notice that they can reference different entity kinds.
+	 */
+	Future<Void> deleteAsync(Transaction transaction, Iterable<Key> keys);
+
+	/**
+	 * Store a large collection of persistent objects. The collection is split into chunks that are 
+	 * stored concurrently, using a bounded number of asynchronous calls. Chunks are not transactional, 
+	 * and a failure in one chunk does not stop the others.
+	 * @param javaObjects the Collection of java objects to store
+	 * @throws org.simpleds.exception.BulkOperationException if any chunk fails
+	 */
+	void putBulk(Collection<?> javaObjects);
+	
+	/**
+	 * Retrieve a large number of instances. The keys are split into chunks that are 
+	 * retrieved concurrently, using a bounded number of asynchronous calls.
+	 * @param keys the keys to retrieve. Notice that they can reference different entity kinds.
+	 * @return the retrieved instances, indexed by key
+	 * @throws org.simpleds.exception.BulkOperationException if any chunk fails. The exception will
+	 * contain the instances retrieved by the successful chunks.
+	 */
+	<T> Map<Key, T> getBulk(Iterable<Key> keys);
+	
+	/**
+	 * Delete a large number of instances. The keys are split into chunks that are 
+	 * deleted concurrently, using a bounded number of asynchronous calls.
+	 * @param keys the keys to delete. Notice that they can reference different entity kinds.
+	 * @throws org.simpleds.exception.BulkOperationException if any chunk fails
+	 */
+	void deleteBulk(Iterable<Key> keys);
 
 
 	/**
@@ -302,6 +439,11 @@ public interface EntityManager {
 	 * @return the {@link DatastoreService} used by this instance.
 	 */
 	DatastoreService getDatastoreService();
+	
+	/**
+	 * @return the {@link AsyncDatastoreService} used by this instance.
+	 */
+	AsyncDatastoreService getAsyncDatastoreService();
 
 	/**
 	 * Convenience method to allocate a single Key.
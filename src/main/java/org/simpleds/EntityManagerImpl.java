@@ -2,30 +2,45 @@ package org.simpleds;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import com.google.common.collect.*;
 import org.simpleds.cache.CacheManager;
+import org.simpleds.cache.Level1Cache;
 import org.simpleds.cache.NonCachedPredicate;
+import org.simpleds.exception.BulkOperationException;
+import org.simpleds.exception.BulkOperationException.ChunkFailure;
 import org.simpleds.metadata.ClassMetadata;
 import org.simpleds.metadata.PersistenceMetadataRepository;
 import org.simpleds.metadata.PropertyMetadata;
 import org.simpleds.metadata.VersionManager;
+import org.simpleds.tx.TransactionContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.utils.FutureWrapper;
+import com.google.common.base.Function;
+import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
 
 @Singleton
 @SuppressWarnings({ "unchecked", "rawtypes" })
@@ -40,11 +55,26 @@ public class EntityManagerImpl implements EntityManager {
 	@Inject
 	private CacheManager cacheManager;
 	
+	/** the asynchronous datastore service. If not set, the default instance will be used */
+	private AsyncDatastoreService asyncDatastoreService;
+	
 	private static Logger log = LoggerFactory.getLogger(EntityManagerImpl.class);
 	
 	/** true to check the schema constraints before persisting changes to the database, default true */
 	private boolean enforceSchemaConstraints = true;
 	
+	/** 
+	 * true to skip the @Version check when storing keys created by {@link #allocateId(Class)} during 
+	 * the current request, since they cannot exist yet. Requires the Level 1 cache. Default false 
+	 */
+	private boolean skipVersionCheckOnAllocatedKeys;
+	
+	/** the number of entities in each chunk of a bulk operation, default 500 */
+	private int bulkChunkSize = 500;
+	
+	/** the maximum number of chunks of a bulk operation that are processed at the same time, default 4 */
+	private int bulkConcurrency = 4;
+	
 	public EntityManagerImpl() {
 		EntityManagerFactory.setEntityManager(this);
 	}
@@ -92,7 +122,12 @@ public class EntityManagerImpl implements EntityManager {
 	@Override
 	public Key allocateId(Class<?> clazz) {
 		String kind = persistenceMetadataRepository.get(clazz).getKind();
-		return datastoreService.allocateIds(kind, 1).getStart();
+		Key key = datastoreService.allocateIds(kind, 1).getStart();
+		Level1Cache level1 = skipVersionCheckOnAllocatedKeys? Level1Cache.getCacheInstance() : null;
+		if (level1 != null) {
+			level1.addAllocatedKey(key);
+		}
+		return key;
 	}
 	
 	private SimpleQuery createQueryImpl(Key ancestor, ClassMetadata metadata) {
@@ -119,67 +154,151 @@ public class EntityManagerImpl implements EntityManager {
 	
 	@Override
 	public Key put(Transaction transaction, Key parentKey, Object javaObject) {
-		ClassMetadata metadata = persistenceMetadataRepository.get(javaObject.getClass());
-		VersionManager versionManager = metadata.getVersionManager();
-		PropertyMetadata versionProperty = versionManager == null? null : versionManager.getPropertyMetadata();
-		Object newVersionValue = null;
+		SinglePut put = new SinglePut(transaction, parentKey, javaObject);
+		Key newKey = datastoreService.put(transaction, put.entity);
+		put.complete(newKey);
+		return newKey;
+	}
+	
+	@Override
+	public Future<Key> putAsync(Object javaObject) {
+		return putAsync(null, null, javaObject);
+	}
+	
+	@Override
+	public Future<Key> putAsync(Transaction transaction, Object javaObject) {
+		return putAsync(transaction, null, javaObject);
+	}
+	
+	@Override
+	public Future<Key> putAsync(Transaction transaction, Key parentKey, Object javaObject) {
+		final SinglePut put = new SinglePut(transaction, parentKey, javaObject);
+		Future<Key> result = getAsyncDatastoreService().put(transaction, put.entity);
 		
-		// check if the key is missing
-		PropertyMetadata<Key, Key> keyProperty = metadata.getKeyProperty();
-		Key providedKey = keyProperty.getValue(javaObject);
-		if (providedKey == null && !metadata.isGenerateKeyValue()) {
-			throw new IllegalArgumentException("No key value provided for " + javaObject.getClass().getSimpleName() + " instance, but key generation is not enabled for this class (missing @GeneratedValue?)");
+		// evict now, in case the Future is never resolved. The cache and the generation counters 
+		// are only updated when it is, once the entity has been stored
+		if (put.providedKey != null && put.metadata.isCacheable()) {
+			cacheManager.delete(ImmutableSetMultimap.of(put.metadata.getCacheNamespace(), put.providedKey));
 		}
 		
-		if (enforceSchemaConstraints) {
-			metadata.validateParentKey(providedKey == null? parentKey : providedKey.getParent());
-		}
+		return new FutureWrapper<Key, Key>(result) {
+
+			@Override
+			protected Key wrap(Key newKey) throws Exception {
+				put.complete(newKey);
+				return newKey;
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause;
+			}
+			
+		};
+	}
+	
+	/**
+	 * Converts and validates a single instance before storing it, 
+	 * and updates the instance and the cache once it has been stored
+	 */
+	private class SinglePut {
 		
-		// transform to entity instance
-		Entity entity = metadata.javaToDatastore(parentKey, javaObject);
+		final ClassMetadata metadata;
 		
-		// check required fields
-		if (enforceSchemaConstraints) {
-			metadata.validateConstraints(entity);
-		}
+		final Transaction transaction;
 		
-		// retrieve and check the @Version attribute, if any
-		if (versionManager != null) {
-			if (providedKey != null) {
-				try {
-					if (transaction == null) {
-						log.warn("Storing versioned instance " + providedKey + " without a transaction. Be aware that optimistic locking may not be accurate unless you provide with a transaction");
-					}
-					Entity currentEntity = datastoreService.get(transaction, providedKey);
-					newVersionValue = versionManager.validateVersion(currentEntity, javaObject);
-				} catch (EntityNotFoundException e) {
-					// safely ignore this, the entity does not yet exist
+		final Object javaObject;
+		
+		/** the key provided by the java object, null if it should be generated */
+		final Key providedKey;
+		
+		/** the entity to store */
+		final Entity entity;
+		
+		/** the new value of the @Version attribute, if any */
+		private Object newVersionValue;
+		
+		/**
+		 * Convert the instance and check the @Version attribute. The current version is retrieved 
+		 * asynchronously while the instance is converted and validated.
+		 */
+		SinglePut(Transaction transaction, Key parentKey, Object javaObject) {
+			this.transaction = transaction;
+			this.javaObject = javaObject;
+			this.metadata = persistenceMetadataRepository.get(javaObject.getClass());
+			VersionManager versionManager = metadata.getVersionManager();
+			
+			// check if the key is missing
+			PropertyMetadata<Key, Key> keyProperty = metadata.getKeyProperty();
+			providedKey = keyProperty.getValue(javaObject);
+			if (providedKey == null && !metadata.isGenerateKeyValue()) {
+				throw new IllegalArgumentException("No key value provided for " + javaObject.getClass().getSimpleName() + " instance, but key generation is not enabled for this class (missing @GeneratedValue?)");
+			}
+			
+			if (enforceSchemaConstraints) {
+				metadata.validateParentKey(providedKey == null? parentKey : providedKey.getParent());
+			}
+			
+			// start retrieving the current @Version value, if any
+			Future<Map<Key, Entity>> currentEntities = null;
+			if (versionManager != null && providedKey != null) {
+				if (transaction == null) {
+					log.warn("Storing versioned instance " + providedKey + " without a transaction. Be aware that optimistic locking may not be accurate unless you provide with a transaction");
 				}
+				currentEntities = getCurrentEntitiesAsync(transaction, ImmutableSet.of(providedKey));
 			}
-			if (newVersionValue == null) {
-				newVersionValue = versionManager.getStartValue();
+			
+			// transform to entity instance
+			entity = metadata.javaToDatastore(parentKey, javaObject);
+			
+			// check required fields
+			if (enforceSchemaConstraints) {
+				metadata.validateConstraints(entity);
+			}
+			
+			// check the @Version attribute, if any
+			if (versionManager != null) {
+				if (currentEntities != null) {
+					Entity currentEntity = getResult(currentEntities).get(providedKey);
+					if (currentEntity != null) {
+						newVersionValue = versionManager.validateVersion(currentEntity, javaObject);
+					}
+				}
+				if (newVersionValue == null) {
+					newVersionValue = versionManager.getStartValue();
+				}
+				versionManager.getPropertyMetadata().setEntityValue(entity, newVersionValue);
 			}
-			versionProperty.setEntityValue(entity, newVersionValue);
-		}
-		
-		// persist 
-		Key newKey = datastoreService.put(transaction, entity);
-		
-		// set the returned primary key value
-		if (providedKey == null) {
-			keyProperty.setValue(javaObject, newKey);
 		}
 		
-		// set the new version value
-		if (versionManager != null) {
-			versionProperty.setValue(javaObject, newVersionValue);
+		/**
+		 * Update the java object and the cache after storing the entity
+		 * @param newKey the key returned by the datastore
+		 */
+		void complete(Key newKey) {
+			// set the returned primary key value
+			if (providedKey == null) {
+				metadata.getKeyProperty().setValue(javaObject, newKey);
+			}
+			
+			// set the new version value
+			VersionManager versionManager = metadata.getVersionManager();
+			if (versionManager != null) {
+				versionManager.getPropertyMetadata().setValue(javaObject, newVersionValue);
+			}
+			
+			// cache the stored value. Inside a transaction it is evicted until the transaction is committed 
+			if (metadata.isCacheable()) {
+				if (transaction == null) {
+					cacheManager.put(javaObject, entity, metadata);
+				} else {
+					cacheManager.delete(ImmutableSetMultimap.of(metadata.getCacheNamespace(), entity.getKey()));
+				}
+			}
+			cacheManager.incrementGenerations(ImmutableSet.of(metadata.getKind()));
+			afterPut(transaction, ImmutableList.of(entity));
 		}
 		
-		// cache the stored value
-		if (metadata.isCacheable()) {
-			cacheManager.put(javaObject, entity, metadata);
-		}
-		return newKey;
 	}
 	
 	@Override
@@ -205,122 +324,269 @@ public class EntityManagerImpl implements EntityManager {
 			return;
 		}
 		
-		// instances without provided primary key
-		ListMultimap<ClassMetadata, Object> transientInstances = ArrayListMultimap.create();
+		BatchPut put = new BatchPut(transaction, parentKey, javaObjects);
+		datastoreService.put(transaction, put.entities);
+		put.complete();
+	}
+	
+	/**
+	 * Converts and validates a collection of instances before storing them, 
+	 * and updates the instances and the cache once they have been stored
+	 */
+	private class BatchPut {
 		
-		// versioned instances
-		ListMultimap<ClassMetadata, Object> versionedInstances = ArrayListMultimap.create();
+		final Transaction transaction;
 		
-		// provided (not null) keys for versioned instances
-		Set<Key> versionedProvidedKeys = Sets.newHashSet(); 
+		/** versioned instances */
+		final ListMultimap<ClassMetadata, Object> versionedInstances;
 		
-		// separate instances
-		for (Object javaObject : javaObjects) {
-			Class<? extends Object> clazz = javaObject.getClass();
-			ClassMetadata metadata = persistenceMetadataRepository.get(clazz);
-			PropertyMetadata<Key, Key> keyProperty = metadata.getKeyProperty();
-			Key key = keyProperty.getValue(javaObject);
-			if (key == null) {
-				if (!metadata.isGenerateKeyValue()) {
-					throw new IllegalArgumentException("No key value provided for " + javaObject + ", but key generation is not enabled for " + metadata.getKind() + " (missing @GeneratedValue?)");
+		/** the new @Version values, indexed by key */
+		final Map<Key, Object> newVersionValues;
+		
+		/** the instances and entities to store in the cache */
+		final ListMultimap<ClassMetadata, Object> cacheableInstances;
+		
+		final ListMultimap<ClassMetadata, Entity> cacheableEntities;
+		
+		/** the entities to store */
+		final List<Entity> entities;
+		
+		/** the modified kinds */
+		final Set<String> kinds;
+		
+		BatchPut(Transaction transaction, Key parentKey, Collection<?> javaObjects) {
+			this.transaction = transaction;
+			
+			// instances without provided primary key
+			ListMultimap<ClassMetadata, Object> transientInstances = ArrayListMultimap.create();
+			
+			// versioned instances
+			versionedInstances = ArrayListMultimap.create();
+			
+			// provided (not null) keys for versioned instances
+			Set<Key> versionedProvidedKeys = Sets.newHashSet(); 
+			
+			// separate instances
+			for (Object javaObject : javaObjects) {
+				Class<? extends Object> clazz = javaObject.getClass();
+				ClassMetadata metadata = persistenceMetadataRepository.get(clazz);
+				PropertyMetadata<Key, Key> keyProperty = metadata.getKeyProperty();
+				Key key = keyProperty.getValue(javaObject);
+				if (key == null) {
+					if (!metadata.isGenerateKeyValue()) {
+						throw new IllegalArgumentException("No key value provided for " + javaObject + ", but key generation is not enabled for " + metadata.getKind() + " (missing @GeneratedValue?)");
+					}
+					transientInstances.put(metadata, javaObject);
 				}
-				transientInstances.put(metadata, javaObject);
-			}
-			VersionManager versionManager = metadata.getVersionManager();
-			if (versionManager != null) {
-				versionedInstances.put(metadata, javaObject);
-				if (key != null) {
-					versionedProvidedKeys.add(key);
+				VersionManager versionManager = metadata.getVersionManager();
+				if (versionManager != null) {
+					versionedInstances.put(metadata, javaObject);
+					if (key != null) {
+						versionedProvidedKeys.add(key);
+					}
 				}
 			}
-		}
 
-		// retrieve current @Version values for existing entities
-		Map<Key, Entity> currentVersionedEntities = versionedInstances.isEmpty()? null : datastoreService.get(transaction, versionedProvidedKeys);
-		Map<Key, Object> newVersionValues = Maps.newHashMap();
-		for (ClassMetadata metadata : versionedInstances.keySet()) {
-			VersionManager versionManager = metadata.getVersionManager();
-			PropertyMetadata<Key, Key> keyProperty = metadata.getKeyProperty();
-			List<Object> vjo = versionedInstances.get(metadata);
-			for (Object javaObject : vjo) {
-				Key key = keyProperty.getValue(javaObject);
-				if (key != null) {
-					Entity currentEntity = currentVersionedEntities.get(key);
-					Object newVersionValue = currentEntity == null? 
-							versionManager.getStartValue() : // it does not exist
-							versionManager.validateVersion(currentEntity, javaObject); // it does exist, retrieve next value
-					newVersionValues.put(key, newVersionValue);
+			// retrieve current @Version values for existing entities
+			Map<Key, Entity> currentVersionedEntities = versionedInstances.isEmpty()? null : getCurrentEntities(transaction, versionedProvidedKeys);
+			newVersionValues = Maps.newHashMap();
+			for (ClassMetadata metadata : versionedInstances.keySet()) {
+				VersionManager versionManager = metadata.getVersionManager();
+				PropertyMetadata<Key, Key> keyProperty = metadata.getKeyProperty();
+				List<Object> vjo = versionedInstances.get(metadata);
+				for (Object javaObject : vjo) {
+					Key key = keyProperty.getValue(javaObject);
+					if (key != null) {
+						Entity currentEntity = currentVersionedEntities.get(key);
+						Object newVersionValue = currentEntity == null? 
+								versionManager.getStartValue() : // it does not exist
+								versionManager.validateVersion(currentEntity, javaObject); // it does exist, retrieve next value
+						newVersionValues.put(key, newVersionValue);
+					}
+				}
+				if (transaction == null && !vjo.isEmpty()) {
+					log.warn("Storing " + vjo.size() + " instances of versioned " + metadata.getKind() + " without a transaction. Be aware that optimistic locking may not be accurate unless you provide with a transaction");
 				}
 			}
-			if (transaction == null && !vjo.isEmpty()) {
-				log.warn("Storing " + vjo.size() + " instances of versioned " + metadata.getKind() + " without a transaction. Be aware that optimistic locking may not be accurate unless you provide with a transaction");
-			}
-		}
-		
-		// assign generated keys and start version values to transient entities
-		for (ClassMetadata metadata : transientInstances.keySet()) {
-			PropertyMetadata<Key, Key> keyProperty = metadata.getKeyProperty();
-			VersionManager versionManager = metadata.getVersionManager();
-			Object startVersion = versionManager == null? null : versionManager.getStartValue();
-			if (enforceSchemaConstraints) {
-				metadata.validateParentKey(parentKey);
+			
+			// assign generated keys and start version values to transient entities
+			for (ClassMetadata metadata : transientInstances.keySet()) {
+				PropertyMetadata<Key, Key> keyProperty = metadata.getKeyProperty();
+				VersionManager versionManager = metadata.getVersionManager();
+				Object startVersion = versionManager == null? null : versionManager.getStartValue();
+				if (enforceSchemaConstraints) {
+					metadata.validateParentKey(parentKey);
+				}
+				List<Object> instances = transientInstances.get(metadata);
+				Iterator<Key> allocatedKeys = datastoreService.allocateIds( parentKey, metadata.getKind(), instances.size()).iterator();
+				for (Object javaObject : instances) {
+					Key key = allocatedKeys.next();
+					keyProperty.setValue(javaObject, key);
+					if (versionManager != null) {
+						newVersionValues.put(key, startVersion);
+					}
+				}
 			}
-			List<Object> instances = transientInstances.get(metadata);
-			Iterator<Key> allocatedKeys = datastoreService.allocateIds( parentKey, metadata.getKind(), instances.size()).iterator();
-			for (Object javaObject : instances) {
-				Key key = allocatedKeys.next();
-				keyProperty.setValue(javaObject, key);
+			
+			// transform to entity instances 
+			cacheableInstances = ArrayListMultimap.create(16, javaObjects.size());
+			cacheableEntities = ArrayListMultimap.create(16, javaObjects.size());
+			entities = Lists.newArrayListWithCapacity(javaObjects.size());
+			kinds = Sets.newHashSet();
+			for (Object javaObject : javaObjects) {
+				Class<? extends Object> clazz = javaObject.getClass();
+				ClassMetadata metadata = persistenceMetadataRepository.get(clazz);
+				VersionManager versionManager = metadata.getVersionManager();
+				Entity entity = metadata.javaToDatastore(parentKey, javaObject);
+			
+				// inject version value
 				if (versionManager != null) {
-					newVersionValues.put(key, startVersion);
+					Object newVersionValue = newVersionValues.get(entity.getKey());
+					versionManager.getPropertyMetadata().setEntityValue(entity, newVersionValue);
+				}
+			
+				// check required fields
+				if (enforceSchemaConstraints) {
+					metadata.validateConstraints(entity);
+				}
+			
+				entities.add(entity);
+				kinds.add(metadata.getKind());
+				if (metadata.isCacheable()) {
+					cacheableInstances.put(metadata, javaObject);
+					cacheableEntities.put(metadata, entity);
 				}
 			}
 		}
-		
-		// transform to entity instances 
-		ListMultimap<ClassMetadata, Object> cacheableInstances = ArrayListMultimap.create(16, javaObjects.size());
-		ListMultimap<ClassMetadata, Entity> cacheableEntities = ArrayListMultimap.create(16, javaObjects.size());
-		List<Entity> entities = Lists.newArrayListWithCapacity(javaObjects.size());
-		for (Object javaObject : javaObjects) {
-			Class<? extends Object> clazz = javaObject.getClass();
-			ClassMetadata metadata = persistenceMetadataRepository.get(clazz);
-			VersionManager versionManager = metadata.getVersionManager();
-			Entity entity = metadata.javaToDatastore(parentKey, javaObject);
 			
-			// inject version value
-			if (versionManager != null) {
-				Object newVersionValue = newVersionValues.get(entity.getKey());
-				versionManager.getPropertyMetadata().setEntityValue(entity, newVersionValue);
+		/**
+		 * Update the java objects and the cache after storing the entities
+		 */
+		void complete() {
+			// set new version values into java objects
+			for (ClassMetadata metadata : versionedInstances.keySet()) {
+				VersionManager versionManager = metadata.getVersionManager();
+				PropertyMetadata<Key, Key> keyProperty = metadata.getKeyProperty();
+				for (Object javaObject : versionedInstances.get(metadata)) {
+					Key key = keyProperty.getValue(javaObject);
+					Object newVersionValue = newVersionValues.get(key);
+					versionManager.getPropertyMetadata().setValue(javaObject, newVersionValue);
+				}
 			}
 			
-			// check required fields
-			if (enforceSchemaConstraints) {
-				metadata.validateConstraints(entity);
+			// store in cache. Inside a transaction the entities are evicted until the transaction is committed
+			if (transaction == null) {
+				cacheManager.put(cacheableInstances, cacheableEntities);
+			} else if (!cacheableEntities.isEmpty()) {
+				SetMultimap<String, Key> cacheableKeys = HashMultimap.create();
+				for (Map.Entry<ClassMetadata, Entity> entry : cacheableEntities.entries()) {
+					cacheableKeys.put(entry.getKey().getCacheNamespace(), entry.getValue().getKey());
+				}
+				cacheManager.delete(cacheableKeys);
+			}
+			cacheManager.incrementGenerations(kinds);
+			afterPut(transaction, entities);
+		}
+		
+	}
+	
+	/**
+	 * Retrieve the current state of versioned entities before storing them.
+	 * Entities already read or written in the same transaction, and keys allocated with 
+	 * {@link #allocateId(Class)} if skipVersionCheckOnAllocatedKeys is enabled, are not retrieved from the datastore.
+	 * The {@link Level1Cache} is not used: it holds mutable java instances, often the same instance being stored, 
+	 * so its version would always match.
+	 * @return the current entities. Missing entities are not included.
+	 */
+	private Map<Key, Entity> getCurrentEntities(Transaction transaction, Set<Key> keys) {
+		return getResult(getCurrentEntitiesAsync(transaction, keys));
+	}
+	
+	/**
+	 * Asynchronous version of {@link #getCurrentEntities(Transaction, Set)}
+	 */
+	private Future<Map<Key, Entity>> getCurrentEntitiesAsync(Transaction transaction, Set<Key> keys) {
+		final TransactionContext context = getTransactionContext(transaction);
+		Level1Cache level1 = skipVersionCheckOnAllocatedKeys? Level1Cache.getCacheInstance() : null;
+		final Map<Key, Entity> result = Maps.newHashMapWithExpectedSize(keys.size());
+		final Set<Key> missingKeys = Sets.newHashSet();
+		for (Key key : keys) {
+			if (context != null && context.contains(key)) {
+				Entity entity = context.getSnapshot(key);
+				if (entity != null) {
+					result.put(key, entity);
+				}
+			} else if (level1 == null || !level1.isAllocatedKey(key)) {
+				missingKeys.add(key);
+			}
+		}
+		if (missingKeys.isEmpty()) {
+			return Futures.immediateFuture(result);
+		}
+		return new FutureWrapper<Map<Key, Entity>, Map<Key, Entity>>(getAsyncDatastoreService().get(transaction, missingKeys)) {
+
+			@Override
+			protected Map<Key, Entity> wrap(Map<Key, Entity> entities) throws Exception {
+				result.putAll(entities);
+				if (context != null) {
+					for (Key key : missingKeys) {
+						Entity entity = entities.get(key);
+						if (entity == null) {
+							context.putMissing(key);
+						} else {
+							context.putSnapshot(entity);
+						}
+					}
+				}
+				return result;
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause;
 			}
 			
-			entities.add(entity);
-			if (metadata.isCacheable()) {
-				cacheableInstances.put(metadata, javaObject);
-				cacheableEntities.put(metadata, entity);
+		};
+	}
+
+	
+	/**
+	 * Update the transaction context and forget any allocated key after storing entities
+	 */
+	private void afterPut(Transaction transaction, Collection<Entity> entities) {
+		TransactionContext context = getTransactionContext(transaction);
+		Level1Cache level1 = skipVersionCheckOnAllocatedKeys? Level1Cache.getCacheInstance() : null;
+		for (Entity entity : entities) {
+			if (context != null) {
+				context.putWrite(persistenceMetadataRepository.get(entity.getKind()), entity);
+			}
+			if (level1 != null) {
+				level1.removeAllocatedKey(entity.getKey());
 			}
 		}
-		
-		
-		// persist 
-		datastoreService.put(transaction, entities);
-		
-		// set new version values into java objects
-		for (ClassMetadata metadata : versionedInstances.keySet()) {
-			VersionManager versionManager = metadata.getVersionManager();
-			PropertyMetadata<Key, Key> keyProperty = metadata.getKeyProperty();
-			for (Object javaObject : versionedInstances.get(metadata)) {
-				Key key = keyProperty.getValue(javaObject);
-				Object newVersionValue = newVersionValues.get(key);
-				versionManager.getPropertyMetadata().setValue(javaObject, newVersionValue);
+	}
+	
+	/**
+	 * Update the transaction context after deleting entities
+	 */
+	private void afterDelete(Transaction transaction, Iterable<Key> keys) {
+		TransactionContext context = getTransactionContext(transaction);
+		if (context != null) {
+			for (Key key : keys) {
+				context.putDelete(persistenceMetadataRepository.get(key.getKind()), key);
 			}
 		}
-		
-		// store in cache
-		cacheManager.put(cacheableInstances, cacheableEntities);
+	}
+	
+	/**
+	 * @return the context of the provided transaction, null if there is no active transaction
+	 */
+	private TransactionContext getTransactionContext(Transaction transaction) {
+		TransactionContext context = TransactionContext.get(transaction);
+		if (context != null) {
+			context.setCacheManager(cacheManager);
+		}
+		return context;
 	}
 	
 	@Override
@@ -354,6 +620,307 @@ public class EntityManagerImpl implements EntityManager {
 	
 	@Override
 	public void delete(Transaction transaction, Iterable<Key> keys) {
+		SetMultimap<String, Key> cacheableKeys = getCacheableKeys(keys);
+		datastoreService.delete(transaction, keys);
+		if (!cacheableKeys.isEmpty()) {
+			cacheManager.delete(cacheableKeys);
+		}
+		cacheManager.incrementGenerations(getKinds(keys));
+		afterDelete(transaction, keys);
+	}
+	
+	@Override
+	public Future<Void> deleteAsync(Key... keys) {
+		return deleteAsync(null, Arrays.asList(keys));
+	}
+	
+	@Override
+	public Future<Void> deleteAsync(Iterable<Key> keys) {
+		return deleteAsync(null, keys);
+	}
+	
+	@Override
+	public Future<Void> deleteAsync(Transaction transaction, Iterable<Key> keys) {
+		final SetMultimap<String, Key> cacheableKeys = getCacheableKeys(keys);
+		final Set<String> kinds = getKinds(keys);
+		if (!cacheableKeys.isEmpty()) {
+			// evict now, in case the Future is never resolved
+			cacheManager.delete(cacheableKeys);
+		}
+		afterDelete(transaction, keys);
+		return new FutureWrapper<Void, Void>(getAsyncDatastoreService().delete(transaction, keys)) {
+
+			@Override
+			protected Void wrap(Void result) throws Exception {
+				if (!cacheableKeys.isEmpty()) {
+					cacheManager.delete(cacheableKeys);
+				}
+				cacheManager.incrementGenerations(kinds);
+				return null;
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause;
+			}
+			
+		};
+	}
+	
+	@Override
+	public void putBulk(Collection<?> javaObjects) {
+		runBulk(ImmutableList.<Object>copyOf(javaObjects), new Function<List<Object>, Future<?>>() {
+
+			@Override
+			public Future<?> apply(List<Object> chunk) {
+				final BatchPut put = new BatchPut(null, null, chunk);
+				return new FutureWrapper<List<Key>, Void>(getAsyncDatastoreService().put(null, put.entities)) {
+
+					@Override
+					protected Void wrap(List<Key> keys) throws Exception {
+						put.complete();
+						return null;
+					}
+
+					@Override
+					protected Throwable convertException(Throwable cause) {
+						return cause;
+					}
+					
+				};
+			}
+			
+		});
+	}
+	
+	@Override
+	public <T> Map<Key, T> getBulk(Iterable<Key> keys) {
+		final Map<Key, T> result = Maps.newHashMap();
+		try {
+			runBulk(ImmutableList.copyOf(keys), new Function<List<Key>, Future<?>>() {
+
+				@Override
+				public Future<?> apply(List<Key> chunk) {
+					return new FutureWrapper<Map<Key, T>, Void>(EntityManagerImpl.this.<T>getAsync(null, chunk)) {
+
+						@Override
+						protected Void wrap(Map<Key, T> values) throws Exception {
+							result.putAll(values);
+							return null;
+						}
+
+						@Override
+						protected Throwable convertException(Throwable cause) {
+							return cause;
+						}
+						
+					};
+				}
+				
+			});
+		} catch (BulkOperationException e) {
+			throw new BulkOperationException(e.getChunks(), e.getFailures(), result);
+		}
+		return result;
+	}
+	
+	@Override
+	public void deleteBulk(Iterable<Key> keys) {
+		runBulk(ImmutableList.copyOf(keys), new Function<List<Key>, Future<?>>() {
+
+			@Override
+			public Future<?> apply(List<Key> chunk) {
+				return deleteAsync(null, chunk);
+			}
+			
+		});
+	}
+	
+	/**
+	 * Split the items in chunks and start an asynchronous operation for each chunk. 
+	 * At most bulkConcurrency operations are in flight at the same time: once the limit is reached,
+	 * the oldest operation is resolved before starting the next one. No thread is created.
+	 * @throws BulkOperationException if any chunk fails, after processing all chunks
+	 */
+	private <I> void runBulk(List<I> items, Function<List<I>, Future<?>> operation) {
+		List<List<I>> chunks = Lists.partition(items, bulkChunkSize);
+		int window = Math.max(1, bulkConcurrency);
+		
+		// the positions and results of the chunks in flight
+		Map<Integer, Future<?>> pending = Maps.newLinkedHashMap();
+		List<ChunkFailure> failures = Lists.newArrayList();
+		for (int i = 0; i < chunks.size(); i++) {
+			if (pending.size() >= window) {
+				resolveBulk(pending, chunks, failures);
+			}
+			try {
+				pending.put(i, operation.apply(chunks.get(i)));
+			} catch (RuntimeException e) {
+				failures.add(new ChunkFailure(i, chunks.get(i), e));
+			}
+		}
+		while (!pending.isEmpty()) {
+			resolveBulk(pending, chunks, failures);
+		}
+		if (!failures.isEmpty()) {
+			Collections.sort(failures, new Comparator<ChunkFailure>() {
+
+				@Override
+				public int compare(ChunkFailure f1, ChunkFailure f2) {
+					return f1.getIndex() - f2.getIndex();
+				}
+				
+			});
+			throw new BulkOperationException(chunks.size(), failures, null);
+		}
+	}
+	
+	/**
+	 * Wait for the oldest chunk in flight, recording any failure
+	 */
+	private static <I> void resolveBulk(Map<Integer, Future<?>> pending, List<List<I>> chunks, List<ChunkFailure> failures) {
+		Iterator<Map.Entry<Integer, Future<?>>> it = pending.entrySet().iterator();
+		Map.Entry<Integer, Future<?>> oldest = it.next();
+		it.remove();
+		int index = oldest.getKey();
+		try {
+			oldest.getValue().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			failures.add(new ChunkFailure(index, chunks.get(index), e.getCause()));
+		} catch (RuntimeException e) {
+			failures.add(new ChunkFailure(index, chunks.get(index), e));
+		}
+	}
+	
+	@Override
+	public RelatedEntities prefetch(Iterable<?> javaObjects, String... paths) {
+		PrefetchPath root = new PrefetchPath(null, null);
+		for (String path : paths) {
+			root.add(path);
+		}
+		
+		// resolve one level at a time, starting with the provided instances
+		Map<Key, Object> resolved = Maps.newHashMap();
+		Set<Key> requested = Sets.newHashSet();
+		Map<PrefetchPath, List<Object>> level = ImmutableMap.<PrefetchPath, List<Object>>of(root, Lists.newArrayList(javaObjects));
+		while (!level.isEmpty()) {
+			Map<PrefetchPath, Set<Key>> pathKeys = Maps.newHashMap();
+			Set<Key> missingKeys = Sets.newHashSet();
+			for (Map.Entry<PrefetchPath, List<Object>> entry : level.entrySet()) {
+				for (PrefetchPath child : entry.getKey().children.values()) {
+					Set<Key> keys = Sets.newLinkedHashSet();
+					for (Object javaObject : entry.getValue()) {
+						addReferencedKeys(keys, javaObject, child);
+					}
+					pathKeys.put(child, keys);
+					for (Key key : keys) {
+						if (requested.add(key)) {
+							missingKeys.add(key);
+						}
+					}
+				}
+			}
+			if (!missingKeys.isEmpty()) {
+				resolved.putAll(this.<Object>get(missingKeys));
+			}
+			
+			// the entities to follow in the next level
+			Map<PrefetchPath, List<Object>> nextLevel = Maps.newHashMap();
+			for (Map.Entry<PrefetchPath, Set<Key>> entry : pathKeys.entrySet()) {
+				if (!entry.getKey().children.isEmpty()) {
+					List<Object> values = Lists.newArrayListWithCapacity(entry.getValue().size());
+					for (Key key : entry.getValue()) {
+						Object value = resolved.get(key);
+						if (value != null) {
+							values.add(value);
+						}
+					}
+					nextLevel.put(entry.getKey(), values);
+				}
+			}
+			level = nextLevel;
+		}
+		return new RelatedEntities(resolved);
+	}
+	
+	/**
+	 * Add the keys contained in the property of the provided instance that is referenced by the path
+	 */
+	private void addReferencedKeys(Set<Key> keys, Object javaObject, PrefetchPath path) {
+		ClassMetadata metadata = persistenceMetadataRepository.get(javaObject.getClass());
+		String propertyName = path.propertyName;
+		if (!metadata.hasProperty(propertyName)) {
+			throw new IllegalArgumentException("Cannot prefetch " + path.path + ": " + javaObject.getClass().getName() + " does not contain a persistent property named " + propertyName);
+		}
+		Object value = metadata.getProperty(propertyName).getValue(javaObject);
+		if (value instanceof Key) {
+			keys.add((Key) value);
+		} else if (value instanceof Collection) {
+			for (Object item : (Collection<?>) value) {
+				if (item instanceof Key) {
+					keys.add((Key) item);
+				} else if (item != null) {
+					throw new IllegalArgumentException(javaObject.getClass().getSimpleName() + "." + propertyName + " contains " + item.getClass().getSimpleName() + " values instead of Key");
+				}
+			}
+		} else if (value != null) {
+			throw new IllegalArgumentException(javaObject.getClass().getSimpleName() + "." + propertyName + " is not a Key property");
+		}
+	}
+	
+	/**
+	 * A node in the tree of paths to prefetch
+	 */
+	private static class PrefetchPath {
+		
+		/** the property to follow, null for the root node */
+		final String propertyName;
+		
+		/** the full dotted path from the root node, null for the root node */
+		final String path;
+		
+		/** the paths that continue from this one */
+		final Map<String, PrefetchPath> children = Maps.newLinkedHashMap();
+		
+		PrefetchPath(String propertyName, String path) {
+			this.propertyName = propertyName;
+			this.path = path;
+		}
+		
+		void add(String path) {
+			int pos = path.indexOf('.');
+			String name = pos == -1? path : path.substring(0, pos);
+			PrefetchPath child = children.get(name);
+			if (child == null) {
+				child = new PrefetchPath(name, this.path == null? name : this.path + "." + name);
+				children.put(name, child);
+			}
+
+			if (pos != -1) {
+				child.add(path.substring(pos + 1));
+			}
+		}
+		
+	}
+	
+	/**
+	 * @return the kinds of the provided keys
+	 */
+	private static Set<String> getKinds(Iterable<Key> keys) {
+		Set<String> kinds = Sets.newHashSet();
+		for (Key key : keys) {
+			kinds.add(key.getKind());
+		}
+		return kinds;
+	}
+	
+	/**
+	 * @return the cacheable keys, grouped by cache namespace
+	 */
+	private SetMultimap<String, Key> getCacheableKeys(Iterable<Key> keys) {
         SetMultimap<String, Key> cacheableKeys = HashMultimap.create();
 		for (Key key : keys) {
 			ClassMetadata metadata = persistenceMetadataRepository.get(key.getKind());
@@ -361,10 +928,7 @@ public class EntityManagerImpl implements EntityManager {
 				cacheableKeys.put(metadata.getCacheNamespace(), key);
 			}
 		}
-		datastoreService.delete(transaction, keys);
-		if (!cacheableKeys.isEmpty()) {
-			cacheManager.delete(cacheableKeys);
-		}
+		return cacheableKeys;
 	}
 	
 	@Override
@@ -374,24 +938,105 @@ public class EntityManagerImpl implements EntityManager {
 	
 	@Override
 	public <T> T get(Transaction transaction, Key key) {
+		ClassMetadata metadata = persistenceMetadataRepository.get(key.getKind());
+		if (metadata.isCacheable() && transaction == null) { // ignore cache if a transaction is active
+			T javaObject = (T) cacheManager.get(metadata, key);
+			if (javaObject != null) {
+				return javaObject;
+			}
+		}
+		TransactionContext context = getTransactionContext(transaction);
+		if (context != null && context.contains(key)) {
+			return (T) getFromContext(context, metadata, key);
+		}
 		try {
-			ClassMetadata metadata = persistenceMetadataRepository.get(key.getKind());
-			T javaObject;
-			if (metadata.isCacheable() && transaction == null) { // ignore cache if a transaction is active
-				javaObject = (T) cacheManager.get(metadata, key);
+			return (T) afterGet(transaction, metadata, datastoreService.get(transaction, key));
+		} catch (EntityNotFoundException e) {
+			throw entityNotFound(transaction, metadata, key, e);
+		}
+	}
+	
+	@Override
+	public <T> Future<T> getAsync(Key key) {
+		return getAsync(null, key);
+	}
+	
+	@Override
+	public <T> Future<T> getAsync(final Transaction transaction, final Key key) {
+		final ClassMetadata metadata = persistenceMetadataRepository.get(key.getKind());
+		if (metadata.isCacheable() && transaction == null) { // ignore cache if a transaction is active
+			try {
+				T javaObject = (T) cacheManager.get(metadata, key);
 				if (javaObject != null) {
-					return javaObject;
+					return Futures.immediateFuture(javaObject);
 				}
+			} catch (org.simpleds.exception.EntityNotFoundException e) {
+				return Futures.immediateFailedFuture(e);
 			}
-			Entity entity = datastoreService.get(transaction, key);
-			javaObject = (T) metadata.datastoreToJava(entity);
-			if (metadata.isCacheable()) {
-				cacheManager.put(javaObject, entity, metadata);
+		}
+		TransactionContext context = getTransactionContext(transaction);
+		if (context != null && context.contains(key)) {
+			try {
+				return Futures.immediateFuture((T) getFromContext(context, metadata, key));
+			} catch (org.simpleds.exception.EntityNotFoundException e) {
+				return Futures.immediateFailedFuture(e);
 			}
-			return javaObject;
-		} catch (EntityNotFoundException e) {
-			throw new org.simpleds.exception.EntityNotFoundException(e);
 		}
+		return new FutureWrapper<Entity, T>(getAsyncDatastoreService().get(transaction, key)) {
+
+			@Override
+			protected T wrap(Entity entity) throws Exception {
+				return (T) afterGet(transaction, metadata, entity);
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause instanceof EntityNotFoundException? entityNotFound(transaction, metadata, key, (EntityNotFoundException) cause) : cause;
+			}
+			
+		};
+	}
+	
+	/**
+	 * Transform an entity previously read or written in the current transaction
+	 * @throws org.simpleds.exception.EntityNotFoundException if the entity is known to be missing
+	 */
+	private Object getFromContext(TransactionContext context, ClassMetadata metadata, Key key) {
+		Entity entity = context.getSnapshot(key);
+		if (entity == null) {
+			throw new org.simpleds.exception.EntityNotFoundException(new EntityNotFoundException(key));
+		}
+		return metadata.datastoreToJava(entity);
+	}
+	
+	/**
+	 * Transform a retrieved entity and store it in the cache and the transaction context
+	 */
+	private Object afterGet(Transaction transaction, ClassMetadata metadata, Entity entity) {
+		TransactionContext context = getTransactionContext(transaction);
+		if (context != null) {
+			context.putSnapshot(entity);
+		}
+		Object javaObject = metadata.datastoreToJava(entity);
+		if (metadata.isCacheable()) {
+			cacheManager.put(javaObject, entity, metadata);
+		}
+		return javaObject;
+	}
+	
+	/**
+	 * Remember the missing key if negative caching is enabled
+	 * @return the exception to throw
+	 */
+	private org.simpleds.exception.EntityNotFoundException entityNotFound(Transaction transaction, ClassMetadata metadata, Key key, EntityNotFoundException e) {
+		if (metadata.useNegativeCache() && transaction == null) {
+			cacheManager.putMissing(metadata, ImmutableList.of(key));
+		}
+		TransactionContext context = getTransactionContext(transaction);
+		if (context != null) {
+			context.putMissing(key);
+		}
+		return new org.simpleds.exception.EntityNotFoundException(e);
 	}
 	
 	@Override
@@ -420,44 +1065,207 @@ public class EntityManagerImpl implements EntityManager {
 	}
 	
 	@Override
-	public <T> Map<Key, T> get(Transaction transaction, Iterable<Key> uk) {
-        Set<Key> unsortedKeys = uk instanceof Set? (Set<Key>) uk : Sets.newHashSet(uk);
-		SetMultimap<ClassMetadata, Key> cacheKeys = HashMultimap.create();
-		for (Key key : unsortedKeys) {
-			ClassMetadata metadata = persistenceMetadataRepository.get(key.getKind());
-			cacheKeys.put(metadata, key);
+	public <T> Map<Key, T> get(Transaction transaction, Iterable<Key> keys) {
+		BatchGet batch = new BatchGet(transaction, keys);
+		if (transaction == null && batch.isSpeculative()) {
+			return (Map) getSpeculative(batch);
 		}
+		batch.lookupCache();
+		Map<Key, Entity> cacheMissEntities = batch.cacheMissKeys.isEmpty()? ImmutableMap.<Key, Entity>of() : datastoreService.get(transaction, batch.cacheMissKeys);
+		return (Map) batch.complete(cacheMissEntities);
+	}
+	
+	@Override
+	public <T> Future<Map<Key, T>> getAsync(Iterable<Key> keys) {
+		return getAsync(null, keys);
+	}
+	
+	@Override
+	public <T> Future<Map<Key, T>> getAsync(Transaction transaction, Iterable<Key> keys) {
+		final BatchGet batch = new BatchGet(transaction, keys);
+		batch.lookupCache();
+		if (batch.cacheMissKeys.isEmpty()) {
+			Map<Key, T> result = (Map) batch.complete(ImmutableMap.<Key, Entity>of());
+			return Futures.immediateFuture(result);
+		}
+		return new FutureWrapper<Map<Key, Entity>, Map<Key, T>>(getAsyncDatastoreService().get(transaction, batch.cacheMissKeys)) {
+
+			@Override
+			protected Map<Key, T> wrap(Map<Key, Entity> cacheMissEntities) throws Exception {
+				return (Map) batch.complete(cacheMissEntities);
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause;
+			}
+			
+		};
+	}
+	
+	@Override
+	public <T> Map<Key, T> getSpeculative(Iterable<Key> keys) {
+		return (Map) getSpeculative(new BatchGet(null, keys));
+	}
+	
+	/**
+	 * Start retrieving all keys from the datastore while the cache is being checked. 
+	 * Cached values are used when available, and the datastore response is used for the rest.
+	 */
+	private Map<Key, Object> getSpeculative(BatchGet batch) {
+		Future<Map<Key, Entity>> datastoreResult = getAsyncDatastoreService().get(null, batch.keys);
+		batch.lookupCache();
+		if (log.isDebugEnabled()) {
+			log.debug("Speculative get: " + (batch.keys.size() - batch.cacheMissKeys.size()) + " keys found in cache, " + batch.cacheMissKeys.size() + " retrieved from the datastore");
+		}
+		Map<Key, Entity> cacheMissEntities = batch.cacheMissKeys.isEmpty()? 
+				ImmutableMap.<Key, Entity>of() : 
+				Maps.filterKeys(getResult(datastoreResult), Predicates.in(batch.cacheMissKeys));
+		return batch.complete(cacheMissEntities);
+	}
+	
+	/**
+	 * Wait for the result of an asynchronous datastore operation 
+	 */
+	private static <T> T getResult(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+	
+	/**
+	 * Retrieves a set of keys from the cache, and merges the cache misses after 
+	 * they have been retrieved from the datastore
+	 */
+	private class BatchGet {
+		
+		/** the transaction to use. If not null, the cache will not be checked */
+		final Transaction transaction;
+		
+		/** the requested keys */
+		final Set<Key> keys;
 		
-		// retrieve values from cache only if tx != null
-		Map<Key, Object> cachedValues = transaction != null? (Map)ImmutableMap.of() : cacheManager.get(cacheKeys);
+		/** the requested keys, grouped by persistent class */
+		final SetMultimap<ClassMetadata, Key> cacheKeys = HashMultimap.create();
 		
-		// retrieve values from database
-		Map<Key, Entity> cacheMissEntities = datastoreService.get(transaction, Sets.difference(unsortedKeys, cachedValues.keySet()));
+		/** the values found in the cache. Keys cached as missing will have a null value */
+		Map<Key, Object> cachedValues;
 		
-		// transform into java objects
-		ListMultimap<ClassMetadata, Object> populateCacheValues = ArrayListMultimap.create();
-		ListMultimap<ClassMetadata, Entity> populateCacheEntities = ArrayListMultimap.create();
+		/** the keys that must be retrieved from the datastore */
+		Set<Key> cacheMissKeys;
 		
-		Map<Key, Object> result = Maps.newHashMapWithExpectedSize(cachedValues.size() + cacheMissEntities.size());
-		result.putAll(cachedValues);
-		for (Entity entity : cacheMissEntities.values()) {
-			if (entity != null) {
-				Key key = entity.getKey();
+		BatchGet(Transaction transaction, Iterable<Key> uk) {
+			this.transaction = transaction;
+	        this.keys = uk instanceof Set? (Set<Key>) uk : Sets.newHashSet(uk);
+			for (Key key : keys) {
 				ClassMetadata metadata = persistenceMetadataRepository.get(key.getKind());
-				Object javaObject = metadata.datastoreToJava(entity);
-				result.put(key, javaObject);
-				if (metadata.isCacheable()) {
-					populateCacheValues.put(metadata, javaObject);
-					populateCacheEntities.put(metadata, entity);
+				cacheKeys.put(metadata, key);
+			}
+		}
+		
+		/**
+		 * @return true if any of the requested kinds is configured for speculative retrieval
+		 */
+		boolean isSpeculative() {
+			for (ClassMetadata metadata : cacheKeys.keySet()) {
+				if (metadata.isSpeculativeGet()) {
+					return true;
 				}
 			}
+			return false;
 		}
 		
-		if (!populateCacheValues.isEmpty()) {
-			cacheManager.put(populateCacheValues, populateCacheEntities);
+		/**
+		 * Retrieve the requested keys from the cache
+		 */
+		void lookupCache() {
+			// retrieve values from cache only if tx == null, otherwise use the transaction context
+			cachedValues = transaction != null? lookupTransactionContext() : cacheManager.get(cacheKeys);
+			cacheMissKeys = ImmutableSet.copyOf(Sets.difference(keys, cachedValues.keySet()));
 		}
-				
-		return (Map) result;
+		
+		/**
+		 * @return the entities already read or written in the transaction. Missing keys will have a null value
+		 */
+		private Map<Key, Object> lookupTransactionContext() {
+			TransactionContext context = getTransactionContext(transaction);
+			if (context == null) {
+				return ImmutableMap.of();
+			}
+			Map<Key, Object> result = Maps.newHashMap();
+			for (Key key : keys) {
+				if (context.contains(key)) {
+					Entity entity = context.getSnapshot(key);
+					result.put(key, entity == null? null : persistenceMetadataRepository.get(key.getKind()).datastoreToJava(entity));
+				}
+			}
+			return result;
+		}
+		
+		/**
+		 * Transform the entities retrieved from the datastore and populate the cache
+		 * @param cacheMissEntities the entities retrieved from the datastore
+		 * @return the merged result of cached and retrieved entities
+		 */
+		Map<Key, Object> complete(Map<Key, Entity> cacheMissEntities) {
+			// transform into java objects
+			ListMultimap<ClassMetadata, Object> populateCacheValues = ArrayListMultimap.create();
+			ListMultimap<ClassMetadata, Entity> populateCacheEntities = ArrayListMultimap.create();
+			
+			Map<Key, Object> result = Maps.newHashMapWithExpectedSize(cachedValues.size() + cacheMissEntities.size());
+			for (Map.Entry<Key, Object> entry : cachedValues.entrySet()) {
+				if (entry.getValue() != null) { // null values are cached as missing
+					result.put(entry.getKey(), entry.getValue());
+				}
+			}
+			for (Entity entity : cacheMissEntities.values()) {
+				if (entity != null) {
+					Key key = entity.getKey();
+					ClassMetadata metadata = persistenceMetadataRepository.get(key.getKind());
+					Object javaObject = metadata.datastoreToJava(entity);
+					result.put(key, javaObject);
+					if (metadata.isCacheable()) {
+						populateCacheValues.put(metadata, javaObject);
+						populateCacheEntities.put(metadata, entity);
+					}
+				}
+			}
+			
+			if (!populateCacheValues.isEmpty()) {
+				cacheManager.put(populateCacheValues, populateCacheEntities);
+			}
+			
+			// remember the retrieved entities for the rest of the transaction
+			TransactionContext context = getTransactionContext(transaction);
+			if (context != null) {
+				for (Key key : cacheMissKeys) {
+					Entity entity = cacheMissEntities.get(key);
+					if (entity == null) {
+						context.putMissing(key);
+					} else {
+						context.putSnapshot(entity);
+					}
+				}
+			}
+			
+			// remember missing keys
+			if (transaction == null && cacheMissEntities.size() < cacheMissKeys.size()) {
+				for (ClassMetadata metadata : cacheKeys.keySet()) {
+					if (metadata.useNegativeCache()) {
+						Set<Key> missingKeys = Sets.difference(Sets.intersection(cacheKeys.get(metadata), cacheMissKeys), cacheMissEntities.keySet());
+						cacheManager.putMissing(metadata, ImmutableSet.copyOf(missingKeys));
+					}
+				}
+			}
+			
+			return result;
+		}
+		
 	}
 
 	@Override
@@ -481,6 +1289,18 @@ public class EntityManagerImpl implements EntityManager {
 		this.persistenceMetadataRepository = repository;
 	}
 	
+	public void setSkipVersionCheckOnAllocatedKeys(boolean skipVersionCheckOnAllocatedKeys) {
+		this.skipVersionCheckOnAllocatedKeys = skipVersionCheckOnAllocatedKeys;
+	}
+	
+	public void setBulkChunkSize(int bulkChunkSize) {
+		this.bulkChunkSize = bulkChunkSize;
+	}
+	
+	public void setBulkConcurrency(int bulkConcurrency) {
+		this.bulkConcurrency = bulkConcurrency;
+	}
+	
 	public void setEnforceSchemaConstraints(boolean enforceSchemaConstraints) {
 		this.enforceSchemaConstraints = enforceSchemaConstraints;
 	}
@@ -534,4 +1354,16 @@ public class EntityManagerImpl implements EntityManager {
 		return datastoreService;
 	}
 	
+	@Override
+	public AsyncDatastoreService getAsyncDatastoreService() {
+		if (asyncDatastoreService == null) {
+			asyncDatastoreService = DatastoreServiceFactory.getAsyncDatastoreService();
+		}
+		return asyncDatastoreService;
+	}
+
+	public void setAsyncDatastoreService(AsyncDatastoreService asyncDatastoreService) {
+		this.asyncDatastoreService = asyncDatastoreService;
+	}
+	
 }
@@ -194,7 +194,7 @@ public interface ParameterQuery {
 	 * <li>any other value will be used as the memcache timeout</li>
 	 * </ul>
      * Cached queries will store the result keys in the provided namespace. Each query will store
-     * in the cache a set of datastore keys using a cache key composed of the serialization of
+     * in the cache a set of datastore keys using a cache key composed of a hash of
      * kind, parameters, fetch_options and cursor.
      * To drop cached results for this query, invoke {@link #clearCache()} passing this namespace.
      *
@@ -0,0 +1,21 @@
+package org.simpleds;
+
+import java.io.Closeable;
+
+/**
+ * {@link CursorIterator} that retrieves the results in a background thread.
+ * Consumers that stop iterating before reaching the end of the results should invoke {@link #close()}
+ * to release the background thread.
+ * @author icoloma
+ *
+ * @param <T>
+ */
+public interface PipelinedCursorIterator<T> extends CursorIterator<T>, Closeable {
+
+	/**
+	 * Stop retrieving results. Any result not consumed yet is discarded, and {@link #hasNext()} will return false.
+	 */
+	@Override
+	void close();
+
+}
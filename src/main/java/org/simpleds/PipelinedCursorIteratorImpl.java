@@ -0,0 +1,249 @@
+package org.simpleds;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.simpleds.metadata.ClassMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+
+/**
+ * Iterator that retrieves and converts the query results in a background thread.
+ * Results are passed to the consumer in chunks through a bounded queue, so that the next
+ * chunks can be fetched from the datastore while the current one is being processed.
+ * <p>
+ * {@link #getCursor()} returns the cursor after the last element returned by {@link #next()}.
+ * @author icoloma
+ *
+ * @param <T>
+ */
+class PipelinedCursorIteratorImpl<T> implements PipelinedCursorIterator<T> {
+
+	/** the maximum time that the producer will wait for the consumer before giving up */
+	private static final long PRODUCER_TIMEOUT_SECONDS = 60;
+
+	/** the interval to check if the producer finished without queueing its last chunk */
+	private static final long CONSUMER_POLL_MILLIS = 1000;
+
+	/** marks the end of the results */
+	private static final Chunk END = new Chunk(null, null);
+
+	/** the class metadata to transform datastore Entities to java */
+	private final ClassMetadata metadata;
+
+	/** the underlying iterator, only accessed by the producer thread */
+	private final QueryResultIterator<Entity> iterator;
+
+	/** if not null, used to filter the results using Java code */
+	private final Predicate<T> predicate;
+
+	/** true to return keys only instead of full-blown entities */
+	private final boolean keysOnly;
+
+	/** the number of elements in each chunk */
+	private final int chunkSize;
+
+	/** the chunks already converted by the producer */
+	private final BlockingQueue<Chunk> queue;
+
+	/** the last chunk (END or a failure) of a finished producer, in case it could not be queued */
+	private volatile Chunk terminal;
+
+	/** true if the consumer invoked {@link #close()} */
+	private volatile boolean closed;
+
+	/** the chunk being consumed */
+	private Chunk current;
+
+	/** the position of the next element in the current chunk */
+	private int position;
+
+	/** the cursor after the last consumed element */
+	private Cursor cursor;
+
+	private static Logger log = LoggerFactory.getLogger(PipelinedCursorIteratorImpl.class);
+
+	/**
+	 * @param startCursor the cursor to return before consuming any element. May be null
+	 * @param depth the maximum number of chunks to keep in the queue
+	 */
+	PipelinedCursorIteratorImpl(ClassMetadata metadata, Predicate<T> predicate, boolean keysOnly, QueryResultIterator<Entity> iterator,
+			Cursor startCursor, int chunkSize, int depth, ThreadFactory threadFactory) {
+		this.metadata = metadata;
+		this.predicate = predicate;
+		this.keysOnly = keysOnly;
+		this.iterator = iterator;
+		this.cursor = startCursor;
+		this.chunkSize = chunkSize;
+		this.queue = new ArrayBlockingQueue<Chunk>(depth);
+		threadFactory.newThread(new Producer()).start();
+	}
+
+	@Override
+	public Cursor getCursor() {
+		return cursor;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (current != END) {
+			if (current != null && position < current.values.size()) {
+				return true;
+			}
+			Chunk next;
+			try {
+				next = queue.poll(CONSUMER_POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			if (next == null) {
+				// the terminal chunk is only used once every chunk queued before it has been consumed
+				Chunk last = terminal;
+				if (last == null || !queue.isEmpty()) {
+					continue;
+				}
+				next = last;
+			}
+			current = next;
+			position = 0;
+			if (current.failure != null) {
+				Throwable failure = current.failure;
+				current = END;
+				throw Throwables.propagate(failure);
+			}
+		}
+		return false;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		cursor = current.cursors.get(position);
+		return (T) current.values.get(position++);
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("remove() is not allowed with pipelined iterators");
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		current = END;
+		// unblock the producer if it is waiting for space in the queue
+		queue.clear();
+	}
+
+	/**
+	 * A list of converted elements, with the cursor after each one
+	 */
+	private static class Chunk {
+
+		final List<Object> values;
+
+		final List<Cursor> cursors;
+
+		/** not null if the producer failed */
+		Throwable failure;
+
+		Chunk(List<Object> values, List<Cursor> cursors) {
+			this.values = values;
+			this.cursors = cursors;
+		}
+
+		static Chunk failure(Throwable failure) {
+			Chunk chunk = new Chunk(null, null);
+			chunk.failure = failure;
+			return chunk;
+		}
+
+	}
+
+	/**
+	 * Fetches and converts the query results
+	 */
+	private class Producer implements Runnable {
+
+		@Override
+		public void run() {
+			Chunk last;
+			try {
+				last = produce();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				last = Chunk.failure(e);
+			} catch (Throwable e) {
+				// including Errors thrown by converters, which would otherwise leave the consumer waiting forever
+				last = Chunk.failure(e);
+			}
+			
+			// publish the last chunk before queueing it, in case the queue is full or this thread is interrupted
+			terminal = last;
+			if (!closed) {
+
+				try {
+					offer(last);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		/**
+		 * Queue all the results
+		 * @return the chunk that marks the end of the results, or a failure if the consumer abandoned the iterator
+		 */
+		@SuppressWarnings("unchecked")
+		private Chunk produce() throws InterruptedException {
+			while (!closed && iterator.hasNext()) {
+				List<Object> values = Lists.newArrayListWithCapacity(chunkSize);
+				List<Cursor> cursors = Lists.newArrayListWithCapacity(chunkSize);
+				while (values.size() < chunkSize && iterator.hasNext()) {
+					Entity entity = iterator.next();
+					Object value = keysOnly? entity.getKey() : metadata.datastoreToJava(entity);
+					if (predicate == null || predicate.apply((T) value)) {
+						values.add(value);
+						cursors.add(iterator.getCursor());
+					}
+				}
+				if (!values.isEmpty() && !offer(new Chunk(values, cursors))) {
+					return Chunk.failure(new IllegalStateException("Pipelined query for " + metadata.getKind() + " timed out waiting for the consumer"));
+				}
+			}
+			return END;
+		}
+
+		/**
+		 * @return false if the iterator has been closed, or the consumer has not retrieved any chunk for too long
+		 */
+		private boolean offer(Chunk chunk) throws InterruptedException {
+			if (closed) {
+				return false;
+			}
+			if (!queue.offer(chunk, PRODUCER_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				log.warn("Pipelined query for " + metadata.getKind() + " abandoned by the consumer. Stopping");
+				return false;
+			}
+			return true;
+		}
+
+
+	}
+
+}
@@ -0,0 +1,69 @@
+package org.simpleds;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.common.collect.Lists;
+
+/**
+ * The entities retrieved by {@link EntityManager#prefetch(Iterable, String...)}, indexed by {@link Key}.
+ * @author icoloma
+ */
+public class RelatedEntities {
+
+	/** the retrieved entities */
+	private final Map<Key, Object> entities;
+
+	RelatedEntities(Map<Key, Object> entities) {
+		this.entities = entities;
+	}
+
+	/**
+	 * @return the entity with the provided key, null if it was not found or the key is null
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(Key key) {
+		return key == null? null : (T) entities.get(key);
+	}
+
+	/**
+	 * @return the entities with the provided keys, in the same order. Keys that were not found are skipped.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> get(Iterable<Key> keys) {
+		List<T> result = Lists.newArrayList();
+		if (keys != null) {
+			for (Key key : keys) {
+				T value = (T) entities.get(key);
+				if (value != null) {
+					result.add(value);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return true if the entity with the provided key was found
+	 */
+	public boolean contains(Key key) {
+		return entities.containsKey(key);
+	}
+
+	/**
+	 * @return the number of retrieved entities
+	 */
+	public int size() {
+		return entities.size();
+	}
+
+	/**
+	 * @return all the retrieved entities, as an unmodifiable map
+	 */
+	public Map<Key, Object> asMap() {
+		return Collections.unmodifiableMap(entities);
+	}
+
+}
@@ -5,20 +5,37 @@ import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.appengine.api.ThreadManager;
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
 import com.google.common.collect.*;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import org.simpleds.cache.CacheManager;
+import org.simpleds.converter.CollectionConverter;
+import org.simpleds.converter.Converter;
 import org.simpleds.exception.EntityNotFoundException;
 import org.simpleds.exception.InconsistentCacheException;
 import org.simpleds.functions.EntityToKeyFunction;
 import org.simpleds.metadata.ClassMetadata;
 import org.simpleds.metadata.PropertyMetadata;
+import org.simpleds.tx.TransactionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Proxy class to handle a {@link Query} instance. 
@@ -29,6 +46,20 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 	
 	/** the value of cacheSeconds to skip cache */
 	static final int NO_CACHE = -1;
+	
+	/** the default number of elements in each chunk of a pipelined iterator */
+	static final int DEFAULT_PIPELINE_CHUNK_SIZE = 100;
+	
+	/** the default maximum number of request threads used by {@link #parallelForEach(int, Function)} */
+	static final int DEFAULT_PARALLEL_THREADS = 8;
+	
+	/** the number of {@code __scatter__} samples retrieved for each shard when splitting a query */
+	static final int SPLIT_OVERSAMPLING = 32;
+	
+	/** the ratio of missing entities that will discard a cached query result */
+	static final double MAX_MISSING_RATIO = 0.25;
+	
+	private static Logger log = LoggerFactory.getLogger(SimpleQuery.class);
 
 	/** the {@link ClassMetadata} that corresponds to this query */
 	private ClassMetadata classMetadata;
@@ -57,6 +88,12 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 	/** Predicate to filter using Java code */
 	private Predicate predicate;
 	
+	/** the fingerprint of this query, calculated lazily and reset when the query is modified */
+	private String fingerprint;
+	
+	/** true to execute asList() as a keys-only query followed by a batch get, null to decide automatically */
+	private Boolean keysThenGet;
+	
 	SimpleQuery(EntityManager entityManager, Key ancestor, ClassMetadata metadata) {
 		this.entityManager = entityManager;
 		this.classMetadata = metadata;
@@ -94,6 +131,7 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 		copy.withTransaction(transaction);
 		copy.datastoreServiceConfig = datastoreServiceConfig;
 		copy.cacheSeconds = cacheSeconds;
+		copy.keysThenGet = keysThenGet;
 		return copy;
 	}
 	
@@ -108,6 +146,7 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 			PropertyMetadata propertyMetadata = getPropertyMetadata(propertyName);
 			query.addFilter(propertyName, operator, propertyMetadata.convertQueryParam(value));
 		}
+		fingerprint = null;
 		return this;
 	}
 	
@@ -132,6 +171,7 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 		// check that the property exists
 		classMetadata.getProperty(propertyName);
 		query.addFilter(propertyName, FilterOperator.EQUAL, null);
+		fingerprint = null;
 		return this;
 	}
 	
@@ -140,6 +180,7 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 		// check that the property exists
 		classMetadata.getProperty(propertyName);
 		query.addFilter(propertyName, FilterOperator.GREATER_THAN, null);
+		fingerprint = null;
 		return this;
 	}
 	
@@ -178,6 +219,7 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 			}
 			query.addFilter(propertyName, FilterOperator.IN, convertedValues);
 		}
+		fingerprint = null;
 		return this;
 	}
 
@@ -212,6 +254,7 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 		}
 		
 		query.addSort(propertyName, direction);
+		fingerprint = null;
 		return this;
 	}
 	
@@ -229,6 +272,34 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 		return sort(propertyName, SortDirection.DESCENDING);
 	}
 	
+	/**
+	 * Convert this query into a projection query that only retrieves the provided properties. 
+	 * The returned instances will be partially populated, and will not be stored in the cache.
+	 * Projected properties must be indexed, and cannot be collections.
+	 * @param propertyNames the names of the properties to retrieve
+	 * @return this instance
+	 */
+	public SimpleQuery project(String... propertyNames) {
+		Preconditions.checkState(!isKeysOnly(), "Keys-only queries cannot use projections");
+		for (String propertyName : propertyNames) {
+			PropertyMetadata propertyMetadata = getPropertyMetadata(propertyName);
+			Converter converter = propertyMetadata.getConverter();
+			if (converter instanceof CollectionConverter) {
+				throw new IllegalArgumentException(propertyName + " is a collection, and cannot be used in a projection");
+			}
+			query.addProjection(new PropertyProjection(propertyName, converter.getDatastoreType()));
+		}
+		fingerprint = null;
+		return this;
+	}
+	
+	/**
+	 * @return true if this is a projection query
+	 */
+	public boolean isProjection() {
+		return !query.getProjections().isEmpty();
+	}
+	
 	@Override
 	public SimpleQuery keysOnly() {
 		query.setKeysOnly();
@@ -237,11 +308,13 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 	
 	public SimpleQuery withLimit(int limit) {
 		fetchOptions.limit(limit);
+		fingerprint = null;
 		return this;
 	}
 	
 	public SimpleQuery withOffset(int offset) {
 		fetchOptions.offset(offset);
+		fingerprint = null;
 		return this;
 	}
 	
@@ -275,6 +348,7 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 		if (cursor != null) {
 			fetchOptions.startCursor(cursor);
 		}
+		fingerprint = null;
 		return this;
 	}
 	
@@ -287,12 +361,14 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 		if (cursor != null) {
 			fetchOptions.endCursor(cursor);
 		}
+		fingerprint = null;
 		return this;
 	}
 	
 	@Override
 	public SimpleQuery withFetchOptions(FetchOptions fetchOptions) {
 		this.fetchOptions = fetchOptions;
+		fingerprint = null;
 		return this;
 	}
 	
@@ -378,33 +454,87 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 	 */
 	public <T> List<T> asList() {
 		String cacheKey = null;
+		String countCacheKey = null;
 		
 		// is the result of the query cached?
-		if (isCacheable() && transaction == null) {
-			cacheKey = getCacheKey();
+		if (useQueryCache() && transaction == null) {
+			// both keys use the generation read before executing the query
+			Long generation = getGeneration();
+			cacheKey = getCacheKey("qdata", generation);
+			countCacheKey = getCacheKey("qcount", generation);
 			List<Key> keys = getCacheManager().get(cacheNamespace, cacheKey);
 			if (keys != null) {
 				if (isKeysOnly()) {
 					return (List) keys;
-				} else {
-					final Map<Key, T> values = entityManager.get(keys);
-					return Lists.transform(keys, new Function<Key, T>() {
-
-						@Override
-						public T apply(Key key) {
-							return values.get(key);
-						}
-						
-					});
+				}
+				List<T> result = getCachedValues(cacheKey, keys);
+				if (result != null) {
+					return result;
 				}
 			}
 		}
 		
 		// execute the query
-		List<T> result = Lists.newArrayList((Iterable<T>) asIterable());
-		if (isCacheable()) {
+		List<T> result = useKeysThenGet()? this.<T>executeKeysThenGet() : Lists.newArrayList((Iterable<T>) asIterable());
+		if (useQueryCache()) {
 			Collection<Key> keys = isKeysOnly()? result : Collections2.transform(result, new EntityToKeyFunction(classMetadata.getPersistentClass()));
 			populateCache(cacheKey, Lists.newArrayList(keys));
+			if (countCacheKey != null && isUnbounded()) {
+				getCacheManager().put(cacheNamespace, countCacheKey, result.size(), cacheSeconds);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * @return true if asList() should retrieve the keys first and then the entities
+	 */
+	private boolean useKeysThenGet() {
+		if (isKeysOnly() || isProjection() || transaction != null) {
+			return false;
+		}
+		return keysThenGet != null? keysThenGet : classMetadata.isCacheable();
+	}
+	
+	/**
+	 * Execute this query as keys-only, and retrieve the entities using a batch get 
+	 * that will reuse any cached instance.
+	 */
+	private <T> List<T> executeKeysThenGet() {
+		List<Key> keys = Lists.newArrayList(clone().keysOnly().<Key>asIterable());
+		Map<Key, T> values = entityManager.get(keys);
+		List<T> result = Lists.newArrayListWithCapacity(keys.size());
+		for (Key key : keys) {
+			T value = values.get(key);
+			if (value != null && (predicate == null || predicate.apply(value))) {
+				result.add(value);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Retrieve the entities of a cached list of keys. Keys that cannot be found anymore are skipped,
+	 * but the cached list is not modified to avoid extending its expiration on every hit. 
+	 * If too many keys are missing the cached list is considered stale, and this method returns null 
+	 * to execute the query again, which will also replace the cached list.
+	 * @return the list of entities, or null if the query should be executed
+	 */
+	private <T> List<T> getCachedValues(String cacheKey, List<Key> keys) {
+		Map<Key, T> values = entityManager.get(keys);
+		List<T> result = Lists.newArrayListWithCapacity(keys.size());
+		for (Key key : keys) {
+			T value = values.get(key);
+			if (value != null) {
+				result.add(value);
+			}
+		}
+		int missing = keys.size() - result.size();
+		if (missing > keys.size() * MAX_MISSING_RATIO) {
+			if (log.isDebugEnabled()) {
+				log.debug("Cached query " + cacheKey + " is missing " + missing + " of " + keys.size() + " entities. Executing again");
+			}
+			return null;
 		}
 		return result;
 	}
@@ -418,6 +548,14 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 		return cacheSeconds != NO_CACHE;
 	}
 	
+	/**
+	 * @return true if the results of this query should be cached. The results of projection queries 
+	 * are never cached, since they do not contain complete entities.
+	 */
+	private boolean useQueryCache() {
+		return isCacheable() && !isProjection();
+	}
+	
 	/**
 	 * Execute the query and return a CursorList
 	 * @return the CursorList according to the provided startCursor and limit values
@@ -434,8 +572,8 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 	 */
 	public <T> T asSingleResult() {
 		T javaObject = null;
-		String cacheKey = getCacheKey();
-		if (isCacheable() && transaction == null) {
+		String cacheKey = useQueryCache()? getCacheKey() : null;
+		if (useQueryCache() && transaction == null) {
 			Collection<Key> keys = getCacheManager().get(cacheNamespace, cacheKey);
 			if (keys != null && keys.size() > 0) {
 				Key key = keys.iterator().next();
@@ -452,7 +590,7 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 				throw new org.simpleds.exception.EntityNotFoundException("No " + getKind() + " found with " + getFilterPredicates());
 			}
 			javaObject = (T) entityManager.datastoreToJava(entity);
-			if (isCacheable()) {
+			if (useQueryCache()) {
                 populateCache(cacheKey, ImmutableList.of(entity.getKey()));
 			}
 		}
@@ -472,17 +610,34 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 
 	/**
 	 * Counts the number of instances returned from this query. This method will only
-	 * retrieve the matching keys, not the entities themselves.
+	 * retrieve the matching keys, not the entities themselves. If this query is cacheable,
+	 * the result will be stored in the cache.
 	 */
 	public int count() {
-		Integer result = null;
-		if (result == null) {
-			SimpleQuery q = this.isKeysOnly()? this : this.clone().keysOnly();
-			result = getDatastoreService().prepare(q.getQuery()).countEntities(fetchOptions);
+		String cacheKey = isCacheable()? getCountCacheKey() : null;
+		if (isCacheable() && transaction == null) {
+			Integer cached = getCacheManager().get(cacheNamespace, cacheKey);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		SimpleQuery q = this.isKeysOnly()? this : this.clone().keysOnly();
+		int result = getDatastoreService().prepare(q.getQuery()).countEntities(fetchOptions);
+		if (isCacheable()) {
+			getCacheManager().put(cacheNamespace, cacheKey, result, cacheSeconds);
 		}
 		return result;
 	}
 
+	/**
+	 * @return true if asList() returns all the results of this query, so that 
+	 * its size can be used as the result of count()
+	 */
+	private boolean isUnbounded() {
+		return predicate == null && fetchOptions.getOffset() == null && fetchOptions.getLimit() == null 
+				&& fetchOptions.getStartCursor() == null && fetchOptions.getEndCursor() == null;
+	}
+
 
 	/** 
 	 * Execute this query and return the result as a {@link CursorIterable} of java objects.
@@ -505,6 +660,182 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 		return iterable.iterator();
 	}
 
+	/**
+	 * Execute this query and return a {@link CursorIterator} that retrieves and converts the results
+	 * in a background request thread, while the caller processes the results already converted. 
+	 * Results are passed in chunks of the configured chunk size (100 by default).
+	 * Callers that stop iterating before the end of the results should close the returned iterator.
+	 * This method does not check the cache.
+	 * @param depth the maximum number of chunks that can be waiting to be consumed
+	 * @return the list of resulting java entities
+	 */
+	public <T> PipelinedCursorIterator<T> asPipelinedIterator(int depth) {
+		Preconditions.checkArgument(depth > 0, "depth must be greater than zero");
+		PreparedQuery preparedQuery = getDatastoreService().prepare(transaction, query);
+		int chunkSize = fetchOptions.getChunkSize() == null? DEFAULT_PIPELINE_CHUNK_SIZE : fetchOptions.getChunkSize();
+		return new PipelinedCursorIteratorImpl<T>(classMetadata, predicate, isKeysOnly(), preparedQuery.asQueryResultIterator(fetchOptions), 
+				fetchOptions.getStartCursor(), chunkSize, depth, ThreadManager.currentRequestThreadFactory());
+	}
+
+	/**
+	 * Split this query in a list of queries that return disjoint subsets of the results, 
+	 * using ranges of {@code __key__} values. The split points are chosen by sampling the 
+	 * {@code __scatter__} property of the queried kind, so the number of results of each
+	 * query will be similar but not exactly the same. 
+	 * <p>
+	 * Queries with sort orders or inequality filters on properties other than {@code __key__}
+	 * cannot be split, and are returned as a single query. The same applies to kinds too small 
+	 * to contain sampled entities.
+	 * @param shards the desired number of queries
+	 * @return a list of at most shards queries. The union of their results is the result of this query.
+	 * @throws IllegalStateException if this query has limit, offset or cursors
+	 */
+	public List<SimpleQuery> split(int shards) {
+		Preconditions.checkArgument(shards > 0, "shards must be greater than zero");
+		Preconditions.checkState(fetchOptions.getLimit() == null && fetchOptions.getOffset() == null 
+				&& fetchOptions.getStartCursor() == null && fetchOptions.getEndCursor() == null, 
+				"Queries with limit, offset or cursors cannot be split");
+		if (shards == 1 || !isSplittable()) {
+			return ImmutableList.of(shard(null, null));
+		}
+		
+		// sample the kind using the __scatter__ property
+		Query sampleQuery = new Query(getKind(), query.getAncestor()).addSort("__scatter__").setKeysOnly();
+		List<Key> samples = Lists.newArrayList();
+		for (Entity entity : getDatastoreService().prepare(transaction, sampleQuery).asIterable(FetchOptions.Builder.withLimit(shards * SPLIT_OVERSAMPLING))) {
+			samples.add(entity.getKey());
+		}
+		Collections.sort(samples);
+		
+		// choose shards - 1 split points
+		List<SimpleQuery> result = Lists.newArrayListWithCapacity(shards);
+		Key previous = null;
+		for (int i = 1; i < shards; i++) {
+			int index = i * samples.size() / shards;
+			if (index < samples.size()) {
+				Key splitPoint = samples.get(index);
+				if (previous == null || previous.compareTo(splitPoint) < 0) {
+					result.add(shard(previous, splitPoint));
+					previous = splitPoint;
+				}
+			}
+		}
+		result.add(shard(previous, null));
+		return result;
+	}
+	
+	/**
+	 * @return true if this query can be split using __key__ ranges
+	 */
+	private boolean isSplittable() {
+		for (SortPredicate sort : query.getSortPredicates()) {
+			if (!"__key__".equals(sort.getPropertyName()) || sort.getDirection() != SortDirection.ASCENDING) {
+				return false;
+			}
+		}
+		for (FilterPredicate filter : query.getFilterPredicates()) {
+			FilterOperator operator = filter.getOperator();
+			if (operator != FilterOperator.EQUAL && operator != FilterOperator.IN && !"__key__".equals(filter.getPropertyName())) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @param from the first key to include, null for no lower bound
+	 * @param to the first key to exclude, null for no upper bound
+	 * @return a copy of this query restricted to the provided range of keys
+	 */
+	private SimpleQuery shard(Key from, Key to) {
+		SimpleQuery shard = clone();
+		shard.predicate = predicate;
+		for (Projection projection : query.getProjections()) {
+			shard.query.addProjection(projection);
+		}
+		if (isKeysOnly()) {
+			shard.query.setKeysOnly();
+		}
+		if (from != null) {
+			shard.query.addFilter("__key__", FilterOperator.GREATER_THAN_OR_EQUAL, from);
+		}
+		if (to != null) {
+			shard.query.addFilter("__key__", FilterOperator.LESS_THAN, to);
+		}
+		return shard;
+	}
+	
+	/**
+	 * Split this query using {@link #split(int)} and process the results of each shard in a request thread, 
+	 * using at most 8 threads. 
+	 * @see #parallelForEach(int, int, Function)
+	 */
+	public <T> void parallelForEach(int shards, final Function<? super T, ?> function) {
+		parallelForEach(shards, DEFAULT_PARALLEL_THREADS, function);
+	}
+	
+	/**
+	 * Split this query using {@link #split(int)} and process the results of each shard in a separate 
+	 * request thread. Shards beyond the maximum number of threads wait until a thread is available, 
+	 * since App Engine limits the number of threads of each request.
+	 * Results are processed in no particular order, and this method returns 
+	 * once all of them have been processed. This method does not check the cache.
+	 * @param shards the desired number of shards
+	 * @param threads the maximum number of request threads
+	 * @param function the function to invoke with each result. The returned value is ignored.
+	 * Since it will be invoked concurrently, the function must be thread-safe.
+	 */
+	public <T> void parallelForEach(int shards, int threads, final Function<? super T, ?> function) {
+		Preconditions.checkArgument(threads > 0, "threads must be greater than zero");
+		List<SimpleQuery> queries = split(shards);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, queries.size()), ThreadManager.currentRequestThreadFactory());
+		try {
+			List<Future<?>> futures = Lists.newArrayListWithCapacity(queries.size());
+			for (final SimpleQuery shard : queries) {
+				futures.add(executor.submit(new Runnable() {
+
+					@Override
+					public void run() {
+						for (Object value : shard.asIterable()) {
+							function.apply((T) value);
+						}
+					}
+					
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Execute this query using {@link #parallelForEach(int, Function)} and return all the results.
+	 * The order of the results is not specified. This method does not check the cache.
+	 * @param shards the desired number of threads
+	 * @return the list of resulting java entities
+	 */
+	public <T> List<T> asParallelList(int shards) {
+		final List<T> result = Collections.synchronizedList(Lists.<T>newArrayList());
+		parallelForEach(shards, new Function<T, Void>() {
+
+			@Override
+			public Void apply(T value) {
+				result.add(value);
+				return null;
+			}
+			
+		});
+		return result;
+	}
+
 	@Override
 	public SimpleQuery withDeadline(double deadline) {
 		if (datastoreServiceConfig == null) {
@@ -529,38 +860,112 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 	}
 
 	/** 
-	 * Calculate the cache key to use for query data. This method combines the query kind, any filter predicates,
- 	 * the start/end cursors and limit / offset values to produce a cache key
+	 * Calculate the cache key to use for query data. The key combines the query kind with the fingerprint 
+	 * of the query (see {@link #getFingerprint()}) and, if enabled, the generation of the kind.
 	 */
 	public String getCacheKey() {
-		StringBuilder builder = new StringBuilder(100);
-		builder.append("qdata{");
-		addCommonCacheKeyParts(builder);
-		if(fetchOptions.getOffset() != null) {
-			builder.append(",off=").append(fetchOptions.getOffset());
-		}
-		if(fetchOptions.getLimit() != null) {
-			builder.append(",lim=").append(fetchOptions.getLimit());
-		}
-		if (fetchOptions.getStartCursor() != null) {
-			builder.append(",start=").append(fetchOptions.getStartCursor().toWebSafeString());
+		return getCacheKey("qdata", getGeneration());
+	}
+
+	/**
+	 * Calculate the cache key to use for the result of {@link #count()}. 
+	 * This is the same as {@link #getCacheKey()} with a different prefix.
+	 */
+	public String getCountCacheKey() {
+		return getCacheKey("qcount", getGeneration());
+	}
+
+	/**
+	 * @return the generation of the query kind, null if generation counters are not enabled
+	 */
+	private Long getGeneration() {
+		// apply the pending increments of transactions committed by this thread
+		TransactionContext.releaseFinished();
+		return getCacheManager().getGeneration(getKind());
+	}
+
+	private String getCacheKey(String prefix, Long generation) {
+		StringBuilder builder = new StringBuilder(80);
+		builder.append(prefix).append("{kind=").append(getKind()).append(",fp=").append(getFingerprint());
+		if (generation != null) {
+			builder.append(",gen=").append(generation);
 		}
-		if (fetchOptions.getEndCursor() != null) {
-			builder.append(",end=").append(fetchOptions.getEndCursor().toWebSafeString());
+		return builder.append('}').toString();
+	}
+
+	/**
+	 * Calculate a 128-bit hash of the ancestor, filter predicates, sort predicates, cursors and 
+	 * limit / offset values of this query. Filter predicates are combined regardless of the order 
+	 * in which they were added, and values are hashed together with their type. 
+	 * The result is cached until this query is modified using the methods of this class.
+	 * @return the fingerprint of this query, as an hex string
+	 */
+	public String getFingerprint() {
+		if (fingerprint == null) {
+			Hasher hasher = Hashing.murmur3_128().newHasher();
+			hasher.putString(getKind(), Charsets.UTF_8);
+			putValue(hasher, query.getAncestor());
+			List<FilterPredicate> predicates = query.getFilterPredicates();
+			if (!predicates.isEmpty()) {
+				List<HashCode> filterHashes = Lists.newArrayListWithCapacity(predicates.size());
+				for (FilterPredicate filter : predicates) {
+					Hasher filterHasher = Hashing.murmur3_128().newHasher()
+						.putString(filter.getPropertyName(), Charsets.UTF_8)
+						.putInt(filter.getOperator().ordinal());
+					putValue(filterHasher, filter.getValue());
+					filterHashes.add(filterHasher.hash());
+				}
+				hasher.putChar('f').putBytes(Hashing.combineUnordered(filterHashes).asBytes());
+			}
+			for (Projection projection : query.getProjections()) {
+				hasher.putChar('p').putString(projection.getName(), Charsets.UTF_8);
+			}
+			for (SortPredicate sort : query.getSortPredicates()) {
+				hasher.putChar('s').putString(sort.getPropertyName(), Charsets.UTF_8).putInt(sort.getDirection().ordinal());
+			}
+			if (fetchOptions.getOffset() != null) {
+				hasher.putChar('o').putInt(fetchOptions.getOffset());
+			}
+			if (fetchOptions.getLimit() != null) {
+				hasher.putChar('l').putInt(fetchOptions.getLimit());
+			}
+			if (fetchOptions.getStartCursor() != null) {
+				hasher.putChar('c').putString(fetchOptions.getStartCursor().toWebSafeString(), Charsets.UTF_8);
+			}
+			if (fetchOptions.getEndCursor() != null) {
+				hasher.putChar('e').putString(fetchOptions.getEndCursor().toWebSafeString(), Charsets.UTF_8);
+			}
+			fingerprint = hasher.hash().toString();
 		}
-		builder.append("}");
-		return builder.toString();
+		return fingerprint;
 	}
 
 	/**
-	 * Add cache key parts that are common to query data and query count.
-	 * @param builder
+	 * Add a query value to the hash, including its type
 	 */
-	private void addCommonCacheKeyParts(StringBuilder builder) {
-		builder.append("kind=").append(getKind());
-		List<FilterPredicate> predicates = query.getFilterPredicates();
-		if (predicates.size() > 0) {
-			builder.append(",pred=").append(predicates);
+	private static void putValue(Hasher hasher, Object value) {
+		if (value == null) {
+			hasher.putChar('N');
+		} else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			hasher.putChar('L').putLong(((Number) value).longValue());
+		} else if (value instanceof Double || value instanceof Float) {
+			hasher.putChar('D').putDouble(((Number) value).doubleValue());
+		} else if (value instanceof Boolean) {
+			hasher.putChar('B').putBoolean((Boolean) value);
+		} else if (value instanceof String) {
+			hasher.putChar('S').putString((String) value, Charsets.UTF_8);
+		} else if (value instanceof Date) {
+			hasher.putChar('T').putLong(((Date) value).getTime());
+		} else if (value instanceof Key) {
+			hasher.putChar('K').putString(KeyFactory.keyToString((Key) value), Charsets.UTF_8);
+		} else if (value instanceof Collection) {
+			Collection<?> values = (Collection<?>) value;
+			hasher.putChar('C').putInt(values.size());
+			for (Object item : values) {
+				putValue(hasher, item);
+			}
+		} else {
+			hasher.putChar('O').putString(value.getClass().getName(), Charsets.UTF_8).putString(value.toString(), Charsets.UTF_8);
 		}
 	}
 	
@@ -583,6 +988,27 @@ public class SimpleQuery implements ParameterQuery, Cloneable {
 		return entityManager.getCacheManager();
 	}
 	
+	/**
+	 * Execute asList() as a keys-only query followed by a batch get of the returned keys,
+	 * so that instances already in the cache are not retrieved from the datastore. 
+	 * This is the default for {@link org.simpleds.annotations.Cacheable} classes.
+	 * @return this instance
+	 */
+	public SimpleQuery withKeysThenGet() {
+		return withKeysThenGet(true);
+	}
+	
+	/**
+	 * Choose whether asList() should be executed as a keys-only query followed by a batch get.
+	 * The default is true for {@link org.simpleds.annotations.Cacheable} classes, false otherwise.
+	 * Keys-only, projection and transactional queries are always executed as a single query.
+	 * @return this instance
+	 */
+	public SimpleQuery withKeysThenGet(boolean keysThenGet) {
+		this.keysThenGet = keysThenGet;
+		return this;
+	}
+	
 	@Override
 	public SimpleQuery withPredicate(Predicate<?> predicate) {
 		this.predicate = predicate;
@@ -0,0 +1,228 @@
+package org.simpleds;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.simpleds.metadata.ClassMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Unit of work that buffers put and delete operations and sends them to the datastore in batches.
+ * Repeated writes of the same {@link Key} are coalesced, keeping only the last one, and all pending
+ * operations are executed when {@link #flush()} is invoked, using the batch methods of {@link EntityManager}.
+ * Instances are converted when the session is flushed, so any modification performed
+ * after invoking {@link #put(Object)} will also be stored.
+ * <p>
+ * Operations are not transactional, and stored instances will not be visible to queries
+ * or get operations until the session has been flushed.
+ * <p>
+ * A session can be bound to the current thread with {@link #begin(EntityManager)}. {@link org.simpleds.cache.CacheFilter}
+ * can be configured to do this automatically, flushing the session at the end of each request.
+ * <p>
+ * Sessions are opt-in: only the operations invoked on the session itself are buffered. Writes invoked directly on 
+ * {@link EntityManager} bypass the bound session and are executed immediately, so code that wants its writes 
+ * batched must use the session returned by {@link #getCurrent()}.
+ * @author icoloma
+ */
+public class WriteBehindSession {
+
+	/** the maximum number of entities that can be stored or deleted in a single datastore call */
+	public static final int MAX_BATCH_SIZE = 500;
+
+	/** the thread-bound instance */
+	private static ThreadLocal<WriteBehindSession> threadLocal = new ThreadLocal<WriteBehindSession>();
+
+	/** the EntityManager used to flush this session */
+	private final EntityManager entityManager;
+
+	/** the pending put operations of instances with a key value */
+	private Map<Key, Object> puts = Maps.newLinkedHashMap();
+
+	/** the pending put operations of instances with a generated key, indexed by parent key */
+	private ListMultimap<Key, Object> transientPuts = LinkedListMultimap.create();
+
+	/** the instances in transientPuts */
+	private Set<Object> transientInstances = Sets.newIdentityHashSet();
+
+	/** the pending delete operations */
+	private Set<Key> deletes = Sets.newLinkedHashSet();
+
+	/** the number of entities in each batch operation */
+	private int batchSize = MAX_BATCH_SIZE;
+
+	private static Logger log = LoggerFactory.getLogger(WriteBehindSession.class);
+
+	public WriteBehindSession(EntityManager entityManager) {
+		this.entityManager = entityManager;
+	}
+
+	/**
+	 * Bind a new session to the current thread.
+	 * This method should be invoked at the beginning of processing this request.
+	 * @return the new session
+	 */
+	public static WriteBehindSession begin(EntityManager entityManager) {
+		WriteBehindSession session = new WriteBehindSession(entityManager);
+		threadLocal.set(session);
+		return session;
+	}
+
+	/**
+	 * Flush and remove the session bound to the current thread, if any.
+	 * This method should be invoked at the end of processing this request.
+	 */
+	public static void end() {
+		WriteBehindSession session = threadLocal.get();
+		if (session != null) {
+			threadLocal.remove();
+			session.flush();
+		}
+	}
+
+	/**
+	 * Remove the session bound to the current thread without flushing it, discarding any pending operation.
+	 */
+	public static void discard() {
+		WriteBehindSession session = threadLocal.get();
+		if (session != null) {
+			threadLocal.remove();
+			if (!session.isEmpty()) {
+				log.warn("Discarding " + session.size() + " pending write-behind operations");
+			}
+		}
+	}
+
+	/**
+	 * @return the session bound to the current thread. May be null.
+	 */
+	public static WriteBehindSession getCurrent() {
+		return threadLocal.get();
+	}
+
+	/**
+	 * Buffer a put operation
+	 * @see EntityManager#put(Object)
+	 */
+	public void put(Object javaObject) {
+		put(null, javaObject);
+	}
+
+	/**
+	 * Buffer a put operation. The parent key is only used if the instance key should be generated
+	 * @see EntityManager#put(Key, Object)
+	 */
+	public void put(Key parentKey, Object javaObject) {
+		ClassMetadata metadata = entityManager.getClassMetadata(javaObject.getClass());
+		Key key = metadata.getKeyProperty().getValue(javaObject);
+		if (key == null) {
+			if (transientInstances.add(javaObject)) {
+				transientPuts.put(parentKey, javaObject);
+			}
+		} else {
+			deletes.remove(key);
+			puts.remove(key);
+			puts.put(key, javaObject);
+		}
+	}
+
+	/**
+	 * Buffer a put operation for each provided instance
+	 * @see EntityManager#put(Collection)
+	 */
+	public void put(Collection<?> javaObjects) {
+		for (Object javaObject : javaObjects) {
+			put(null, javaObject);
+		}
+	}
+
+	/**
+	 * Buffer a delete operation. Any pending put of the same keys is discarded
+	 * @see EntityManager#delete(Key...)
+	 */
+	public void delete(Key... keys) {
+		delete(Arrays.asList(keys));
+	}
+
+	/**
+	 * Buffer a delete operation. Any pending put of the same keys is discarded
+	 * @see EntityManager#delete(Iterable)
+	 */
+	public void delete(Iterable<Key> keys) {
+		for (Key key : keys) {
+			puts.remove(key);
+			deletes.add(key);
+		}
+	}
+
+	/**
+	 * Execute all pending operations, in batches of at most {@link #getBatchSize()} entities.
+	 * Pending operations are removed from this session even if the datastore call fails.
+	 */
+	public void flush() {
+		if (isEmpty()) {
+			return;
+		}
+		List<Object> putValues = Lists.newArrayList(puts.values());
+		ListMultimap<Key, Object> transientValues = transientPuts;
+		List<Key> deleteValues = Lists.newArrayList(deletes);
+		clear();
+		if (log.isDebugEnabled()) {
+			log.debug("Flushing " + (putValues.size() + transientValues.size()) + " put and " + deleteValues.size() + " delete operations");
+		}
+		for (List<Object> batch : Lists.partition(putValues, batchSize)) {
+			entityManager.put(batch);
+		}
+		for (Key parentKey : transientValues.keySet()) {
+			for (List<Object> batch : Lists.partition(transientValues.get(parentKey), batchSize)) {
+				entityManager.put(parentKey, batch);
+			}
+		}
+		for (List<Key> batch : Lists.partition(deleteValues, batchSize)) {
+			entityManager.delete(batch);
+		}
+	}
+
+	/**
+	 * Discard all pending operations
+	 */
+	public void clear() {
+		puts = Maps.newLinkedHashMap();
+		transientPuts = LinkedListMultimap.create();
+		transientInstances = Sets.newIdentityHashSet();
+		deletes = Sets.newLinkedHashSet();
+	}
+
+	/**
+	 * @return the number of pending operations
+	 */
+	public int size() {
+		return puts.size() + transientPuts.size() + deletes.size();
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+			throw new IllegalArgumentException("Batch size must be between 1 and " + MAX_BATCH_SIZE);
+		}
+		this.batchSize = batchSize;
+	}
+
+}
@@ -1,6 +1,7 @@
 package org.simpleds.annotations;
 
 import org.simpleds.cache.CacheManager;
+import org.simpleds.cache.Compression;
 
 import java.lang.annotation.Documented;
 import java.lang.annotation.ElementType;
@@ -29,4 +30,44 @@ public @interface Cacheable {
 	 */
 	int value() default 0;
 	
+	/**
+	 * The number of seconds that this class should be cached in the process-wide 
+	 * {@link org.simpleds.cache.SharedCache}, if one has been configured. 
+	 * If not specified, the class will not be stored in the shared cache.
+	 */
+	int sharedSeconds() default 0;
+	
+	/**
+	 * The number of seconds to remember that a key does not exist in the datastore.
+	 * Requests for missing keys will be answered by the cache during this period, 
+	 * until an instance is stored with the same key. If not specified, missing keys are not cached.
+	 */
+	int negativeSeconds() default 0;
+	
+	/**
+	 * If true, retrieving multiple keys outside of a transaction will query the datastore at the same time 
+	 * that the cache is checked, instead of waiting for the cache misses. Default is false.
+	 * @see org.simpleds.EntityManager#getSpeculative(Iterable)
+	 */
+	boolean speculative() default false;
+	
+	/**
+	 * If true, instances will be stored in Memcache using a compact binary format instead of 
+	 * a serialized Entity. Cached values are discarded automatically when the persistent properties 
+	 * of the class change. Default is false.
+	 * @see org.simpleds.metadata.EntityCodec
+	 */
+	boolean compact() default false;
+	
+	/**
+	 * The minimum size in bytes of a Memcache value that will be stored compressed. 
+	 * Values are decompressed transparently when retrieved. If not specified, values are not compressed.
+	 */
+	int compressThreshold() default 0;
+	
+	/**
+	 * The algorithm used to compress values over {@link #compressThreshold()}. Default is {@link Compression#DEFLATE}.
+	 */
+	Compression compression() default Compression.DEFLATE;
+	
 }
@@ -12,6 +12,10 @@ import org.simpleds.tx.TransactionInterceptor;
 /**
  * Indicates that a method is considered transactional, that is, all managed 
  * transactions should be commited or rolled back after method exit. 
+ * <p>
+ * If {@link #retries()} is greater than zero, the method will be executed again 
+ * when it fails because of contention (see {@link org.simpleds.tx.TransactionRunner}).
+ * Only methods that can be safely re-executed should be configured to retry.
  * 
  * @see TransactionInterceptor
  * @author Nacho
@@ -23,4 +27,14 @@ import org.simpleds.tx.TransactionInterceptor;
 @Documented
 public @interface Transactional {
 	
+	/**
+	 * The number of times to re-execute the method if the transaction fails because of contention. Default is 0.
+	 */
+	int retries() default 0;
+	
+	/**
+	 * The milliseconds to wait before the first retry. The delay is doubled with each retry, and a random jitter is added.
+	 */
+	long backoff() default 100;
+	
 }
@@ -1,13 +1,23 @@
 package org.simpleds.cache;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.simpleds.EntityManagerFactory;
+import org.simpleds.WriteBehindSession;
+import org.simpleds.tx.TransactionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Configure this filter in web.xml to get Level 1 caching. 
@@ -24,23 +34,123 @@ import javax.servlet.ServletResponse;
 &lt;/filter-mapping>
  * </pre>
  * 
+ * Set the <code>writeBehind</code> init-param to true to also bind a {@link WriteBehindSession} 
+ * to each request. Pending operations are flushed before the response is committed, that is, 
+ * when the request starts writing the response body, flushes the response buffer or sends
+ * a redirect or error. Any failure is then thrown to the code writing the response, 
+ * and can be reported to the client. 
+ * Operations buffered after that point are flushed when the request completes normally; 
+ * the response has usually been sent by then, so their failures are logged and rethrown 
+ * to the container but cannot reach the client. The session is discarded if the request 
+ * throws an exception. Only the operations invoked on the bound session are buffered, 
+ * see {@link WriteBehindSession}.
+ * 
  * @author Nacho
  *
  */
 public class CacheFilter implements Filter {
 
+	/** true to bind a {@link WriteBehindSession} to each request */
+	private boolean writeBehind;
+	
+	private static Logger log = LoggerFactory.getLogger(CacheFilter.class);
+
 	@Override
 	public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain) throws IOException, ServletException {
 		try {
 			Level1Cache.setCacheInstance();
-			chain.doFilter(req, resp);
+			if (writeBehind) {
+				WriteBehindSession.begin(EntityManagerFactory.getEntityManager());
+				boolean completed = false;
+				try {
+					chain.doFilter(req, resp instanceof HttpServletResponse? new WriteBehindResponse((HttpServletResponse) resp) : resp);
+					completed = true;
+				} finally {
+					if (completed) {
+						endWriteBehindSession();
+					} else {
+						WriteBehindSession.discard();
+					}
+				}
+			} else {
+				chain.doFilter(req, resp);
+			}
 		} finally {
+			TransactionContext.releaseAll();
 			Level1Cache.clearCacheInstance();
 		}
 	}
 
+
+	/**
+	 * Flush the operations buffered after the response was committed 
+	 */
+	private void endWriteBehindSession() {
+		try {
+			WriteBehindSession.end();
+		} catch (RuntimeException e) {
+			log.error("Could not flush write-behind operations after the response was sent: " + e, e);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Flushes the current {@link WriteBehindSession} before the response is committed
+	 */
+	private static class WriteBehindResponse extends HttpServletResponseWrapper {
+		
+		WriteBehindResponse(HttpServletResponse response) {
+			super(response);
+		}
+		
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			flushSession();
+			return super.getOutputStream();
+		}
+		
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			flushSession();
+			return super.getWriter();
+		}
+		
+		@Override
+		public void flushBuffer() throws IOException {
+			flushSession();
+			super.flushBuffer();
+		}
+		
+		@Override
+		public void sendRedirect(String location) throws IOException {
+			flushSession();
+			super.sendRedirect(location);
+		}
+		
+		@Override
+		public void sendError(int sc) throws IOException {
+			flushSession();
+			super.sendError(sc);
+		}
+		
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+			flushSession();
+			super.sendError(sc, msg);
+		}
+		
+		private void flushSession() {
+			WriteBehindSession session = WriteBehindSession.getCurrent();
+			if (session != null) {
+				session.flush();
+			}
+		}
+		
+	}
+	
 	@Override
-	public void init(FilterConfig arg0) throws ServletException {
+	public void init(FilterConfig config) throws ServletException {
+		writeBehind = Boolean.parseBoolean(config.getInitParameter("writeBehind"));
 	}
 
 	@Override
@@ -1,6 +1,7 @@
 package org.simpleds.cache;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Map;
 
 import com.google.common.collect.SetMultimap;
@@ -16,6 +17,8 @@ import com.google.common.collect.ListMultimap;
  * <li>Level 1: Keeps track of entities retrieved by the current thread. 
  * If the required entity has been previously retrieved by the current thread, 
  * it is returned as is (no unmarshalling is required)</li>
+ * <li>Shared: An optional {@link SharedCache} that keeps {@link Entity} snapshots 
+ * for all threads of this instance.</li>
  * <li>Level 2: Any entity that has not been returned by the level 1 cache 
  * will be tested against the level 2 cache, which is backed by memcache.
  * This level will use the {@link Entity} representation, so an unmarshall 
@@ -30,6 +33,9 @@ public interface CacheManager {
 	/** memcache namespace for SimpleDS entities */
 	static final String ENTITIES_NAMESPACE = "_sds_entities";
 	
+	/** memcache namespace for the generation counters of each kind */
+	static final String GENERATIONS_NAMESPACE = "_sds_generations";
+	
 	/**
 	 * Check the level 1 and level 2 cache for the required value.
 	 * If the value is found in Level 1 cache, it is returned as is.
@@ -38,6 +44,7 @@ public interface CacheManager {
 	 * If the value is not found in Level 1 or Level2, this method will return null.
 	 * @param key the key of the persistent entity to return
 	 * @return the cached value, or null if not found.
+	 * @throws org.simpleds.exception.EntityNotFoundException if the key is cached as missing
 	 */
 	<T> T get(ClassMetadata metadata, Key key);
 	
@@ -52,9 +59,18 @@ public interface CacheManager {
 	/**
 	 * Retrieve a set of entities from the cache
 	 * @param keys the keys to retrieve from the cache. The key is the cache namespace, and the values can be Strings (for queries) or Keys (for entities)
-	 * @return a Map of retrieved persistent entities.
+	 * @return a Map of retrieved persistent entities. Keys that are cached as missing 
+	 * will be included with a null value.
 	 */
 	Map<Key, Object> get(SetMultimap<ClassMetadata, Key> keys);
+	
+	/**
+	 * Remember that the provided keys do not exist in the datastore. 
+	 * This is only used with classes configured with {@link org.simpleds.annotations.Cacheable#negativeSeconds()}
+	 * @param metadata the {@link ClassMetadata} instance for these keys
+	 * @param keys the keys that could not be found
+	 */
+	void putMissing(ClassMetadata metadata, Collection<Key> keys);
 
     /**
      * Return the cached query data, if available
@@ -90,4 +106,19 @@ public interface CacheManager {
      * Clear memcache with the provided namespace.
      */
     void clear(String namespace);
+    
+    /**
+     * Return the generation counter of a kind. The counter is incremented each time that 
+     * instances of this kind are stored or deleted, and is included in the cache key of queries 
+     * so that cached results are not used after the kind is modified.
+     * @return the current generation, or null if generation counters are disabled
+     */
+    Long getGeneration(String kind);
+    
+    /**
+     * Increment the generation counter of the provided kinds. 
+     * This method does nothing if generation counters are disabled.
+     */
+    void incrementGenerations(Collection<String> kinds);
+
 }
@@ -5,13 +5,19 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import com.google.appengine.api.memcache.AsyncMemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.*;
+import org.simpleds.exception.EntityNotFoundException;
 import org.simpleds.functions.DatastoreEntityToKeyFunction;
 import org.simpleds.metadata.ClassMetadata;
 import org.simpleds.metadata.PersistenceMetadataRepository;
@@ -23,6 +29,7 @@ import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
 
 /**
  * Implementation of {@link CacheManager}
@@ -34,29 +41,54 @@ public class CacheManagerImpl implements CacheManager {
 	@Inject
 	private PersistenceMetadataRepository persistenceMetadataRepository;
 	
+	/** the process-wide cache between level 1 and memcache. May be null */
+	private SharedCache sharedCache;
+	
+	/** true to include the generation counter of each kind in query cache keys */
+	private boolean generationCounters;
+	
 	private static Logger log = LoggerFactory.getLogger(CacheManagerImpl.class);
 
 	@Override
 	@SuppressWarnings("unchecked")
 	public <T> T get(ClassMetadata metadata, Key key) {
 		Level1Cache level1 = Level1Cache.getCacheInstance();
-		T cachedValue = null;
+		Object cachedValue = null;
 		if (level1 != null) {
-			cachedValue = (T) level1.get(key);
+			cachedValue = level1.get(key);
 		}
-		if (cachedValue == null && metadata.useLevel2Cache()) {
-			Entity entity = (Entity) getMemcache(metadata.getCacheNamespace()).get(key);
+		if (cachedValue == null && useSharedCache(metadata)) {
+			Entity entity = sharedCache.get(key);
 			if (entity != null) {
-				if (log.isDebugEnabled()) {
-					log.debug("Level 2 cache hit: " + key);
+				cachedValue = metadata.datastoreToJava(entity);
+				if (level1 != null) {
+					level1.put(key, cachedValue);
 				}
-				cachedValue = (T) metadata.datastoreToJava(entity);
+			}
+		}
+		if (cachedValue == null && metadata.useLevel2Cache()) {
+			Object value = getMemcache(metadata.getCacheNamespace()).get(key);
+			if (value == Tombstone.INSTANCE) {
+				cachedValue = value;
 				if (level1 != null) {
-					level1.put(entity.getKey(), cachedValue);
+					level1.put(key, value);
+				}
+			} else if (value != null) {
+				cachedValue = fromLevel2Value(metadata, key, value);
+				if (cachedValue != null) {
+					if (log.isDebugEnabled()) {
+						log.debug("Level 2 cache hit: " + key);
+					}
+					if (level1 != null) {
+						level1.put(key, cachedValue);
+					}
 				}
 			}
 		}
-		return cachedValue;
+		if (cachedValue == Tombstone.INSTANCE) {
+			throw new EntityNotFoundException("Entity cached as missing: " + key);
+		}
+		return (T) cachedValue;
 	}
 
 	@Override
@@ -65,8 +97,33 @@ public class CacheManagerImpl implements CacheManager {
 		if (level1 != null) {
 			level1.put(entity.getKey(), instance);
 		}
+		if (useSharedCache(metadata)) {
+			sharedCache.put(entity, metadata.getSharedCacheSeconds());
+		}
 		if (metadata.useLevel2Cache()) {
-            getMemcache(metadata.getCacheNamespace()).put(entity.getKey(), entity, Expiration.byDeltaSeconds(metadata.getCacheSeconds()));
+            getMemcache(metadata.getCacheNamespace()).put(entity.getKey(), toLevel2Value(metadata, entity), Expiration.byDeltaSeconds(metadata.getCacheSeconds()));
+		}
+	}
+
+	@Override
+	public void putMissing(ClassMetadata metadata, Collection<Key> keys) {
+		if (!metadata.useNegativeCache() || keys.isEmpty()) {
+			return;
+		}
+		Level1Cache level1 = Level1Cache.getCacheInstance();
+		Map<Key, Tombstone> tombstones = Maps.newHashMapWithExpectedSize(keys.size());
+		for (Key key : keys) {
+			if (level1 != null) {
+				level1.put(key, Tombstone.INSTANCE);
+			}
+			tombstones.put(key, Tombstone.INSTANCE);
+		}
+		if (metadata.useLevel2Cache()) {
+			// do not overwrite any entity stored concurrently by other requests
+			getMemcache(metadata.getCacheNamespace()).putAll(tombstones, Expiration.byDeltaSeconds(metadata.getNegativeCacheSeconds()), SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Cached as missing: " + keys);
 		}
 	}
 
@@ -76,9 +133,16 @@ public class CacheManagerImpl implements CacheManager {
 		if (level1 != null) {
 			level1.delete(keysByNamespace.values());
 		}
+		if (sharedCache != null) {
+			sharedCache.delete(keysByNamespace.values());
+		}
 
+        List<Future<? extends Set<?>>> futures = Lists.newArrayListWithCapacity(keysByNamespace.keySet().size());
         for (String namespace : keysByNamespace.keySet()) {
-            getMemcache(namespace).deleteAll(keysByNamespace.get(namespace));
+            futures.add(getAsyncMemcache(namespace).deleteAll(keysByNamespace.get(namespace)));
+        }
+        for (Future<?> future : futures) {
+            waitFor(future, "deleteAll", null);
         }
 		if (log.isDebugEnabled()) {
 			log.debug("Deleted from Level 2 cache: " + keysByNamespace.values());
@@ -92,34 +156,59 @@ public class CacheManagerImpl implements CacheManager {
         SetMultimap<String, Key> level2Keys = HashMultimap.create();
         Map<Key, Object> result = Maps.newHashMapWithExpectedSize(keys.size());
 
-		// keys to retrieve from level 1 cache
+		// keys to retrieve from level 1 and shared cache
         for (ClassMetadata metadata : keys.keySet()) {
             if (metadata.isCacheable()) {
                 Set<Key> partialKeys = keys.get(metadata);
                 if (level1 != null ) {
                     Map<Key, Object> cached1Results = (Map) level1.get(partialKeys);
-                    result.putAll(cached1Results);
-                    if (metadata.useLevel2Cache()) {
-                        level2Keys.putAll(metadata.getCacheNamespace(),  Sets.difference(partialKeys, cached1Results.keySet()));
+                    for (Map.Entry<Key, Object> entry : cached1Results.entrySet()) {
+                        result.put(entry.getKey(), entry.getValue() == Tombstone.INSTANCE? null : entry.getValue());
+                    }
+                    partialKeys = ImmutableSet.copyOf(Sets.difference(partialKeys, cached1Results.keySet()));
+                }
+                if (useSharedCache(metadata) && !partialKeys.isEmpty()) {
+                    Map<Key, Entity> sharedResults = sharedCache.get(partialKeys);
+                    for (Entity entity : sharedResults.values()) {
+                        Object javaObject = metadata.datastoreToJava(entity);
+                        result.put(entity.getKey(), javaObject);
+                        if (level1 != null) {
+                            level1.put(entity.getKey(), javaObject);
+                        }
                     }
-                } else {
-                    level2Keys.putAll(metadata.getCacheNamespace(),  partialKeys);
+                    partialKeys = ImmutableSet.copyOf(Sets.difference(partialKeys, sharedResults.keySet()));
+                }
+                if (metadata.useLevel2Cache()) {
+                    level2Keys.putAll(metadata.getCacheNamespace(), partialKeys);
                 }
             }
         }
 
-        // retrieve from memcache
+        // retrieve from memcache, querying all namespaces concurrently
+        Map<String, Future<Map<Key, Object>>> level2Results = Maps.newHashMapWithExpectedSize(level2Keys.keySet().size());
         for (String namespace : level2Keys.keySet()) {
-            Map<Key, Entity> cached2Results = (Map) getMemcache(namespace).getAll(level2Keys.get(namespace));
-            for (Map.Entry<Key, Entity> entry : cached2Results.entrySet()) {
+            level2Results.put(namespace, getAsyncMemcache(namespace).getAll(level2Keys.get(namespace)));
+        }
+        for (String namespace : level2Results.keySet()) {
+            Map<Key, Object> cached2Results = waitFor(level2Results.get(namespace), "getAll", namespace);
+            if (cached2Results == null) {
+                continue;
+            }
+            for (Map.Entry<Key, Object> entry : cached2Results.entrySet()) {
                 Key key = entry.getKey();
-                Entity entity = entry.getValue();
-                if (entity != null) {
-                    ClassMetadata metadata = persistenceMetadataRepository.get(entity.getKind());
-                    Object javaObject = metadata.datastoreToJava(entry.getValue());
-                    result.put(entry.getKey(), javaObject);
+                if (entry.getValue() == Tombstone.INSTANCE) {
+                    result.put(key, null);
                     if (level1 != null) {
-                        level1.put(entity.getKey(), javaObject);
+                        level1.put(key, Tombstone.INSTANCE);
+                    }
+                } else if (entry.getValue() != null) {
+                    ClassMetadata metadata = persistenceMetadataRepository.get(key.getKind());
+                    Object javaObject = fromLevel2Value(metadata, key, entry.getValue());
+                    if (javaObject != null) {
+                        result.put(key, javaObject);
+                        if (level1 != null) {
+                            level1.put(key, javaObject);
+                        }
                     }
                 }
             }
@@ -134,24 +223,34 @@ public class CacheManagerImpl implements CacheManager {
 	@Override
 	public void put(ListMultimap<ClassMetadata, Object> javaObjects, ListMultimap<ClassMetadata, Entity> dsEntities) {
 		Level1Cache level1 = Level1Cache.getCacheInstance();
-        SetMultimap<Pair<String, Integer>, Entity> level2WriteContents = HashMultimap.create(); // the key is Pair<namespace, expirationInSeconds>
+        Map<Pair<String, Integer>, Map<Key, Object>> level2WriteContents = Maps.newHashMap(); // the key is Pair<namespace, expirationInSeconds>
 		for (ClassMetadata metadata : javaObjects.keySet()) {
 			if (level1 != null && metadata.isCacheable()) {
 				level1.put(Collections2.transform(dsEntities.get(metadata), new DatastoreEntityToKeyFunction()), javaObjects.get(metadata));
 			}
+			if (useSharedCache(metadata)) {
+				sharedCache.put(dsEntities.get(metadata), metadata.getSharedCacheSeconds());
+			}
 			if (metadata.useLevel2Cache()) {
                 Pair<String, Integer> key = new Pair(metadata.getCacheNamespace(), metadata.getCacheSeconds());
-                level2WriteContents.putAll(key, dsEntities.get(metadata));
+                Map<Key, Object> contents = level2WriteContents.get(key);
+                if (contents == null) {
+                    contents = Maps.newHashMap();
+                    level2WriteContents.put(key, contents);
+                }
+                for (Entity entity : dsEntities.get(metadata)) {
+                    contents.put(entity.getKey(), toLevel2Value(metadata, entity));
+                }
 			}
 		}
 
-        for (Pair<String, Integer> key : level2WriteContents.keySet()) {
-            Set<Entity> contents = level2WriteContents.get(key);
-            Map<Key, Entity> m = Maps.newHashMapWithExpectedSize(contents.size());
-            for (Entity e : contents) {
-                m.put(e.getKey(), e);
-            }
-            getMemcache(key.getValue1()).putAll(m, Expiration.byDeltaSeconds(key.getValue2()));
+        List<Future<Void>> futures = Lists.newArrayListWithCapacity(level2WriteContents.keySet().size());
+        for (Map.Entry<Pair<String, Integer>, Map<Key, Object>> entry : level2WriteContents.entrySet()) {
+            Pair<String, Integer> key = entry.getKey();
+            futures.add(getAsyncMemcache(key.getValue1()).putAll(entry.getValue(), Expiration.byDeltaSeconds(key.getValue2())));
+        }
+        for (Future<Void> future : futures) {
+            waitFor(future, "putAll", null);
         }
 	}
 
@@ -184,6 +283,9 @@ public class CacheManagerImpl implements CacheManager {
     public void clear(String namespace) {
         Preconditions.checkArgument(namespace != null, "Namespace is null");
         getMemcache(namespace).clearAll();
+        if (sharedCache != null) {
+            sharedCache.clear();
+        }
         Level1Cache level1 = Level1Cache.getCacheInstance();
         if (level1 != null) {
             level1.clear();
@@ -201,13 +303,134 @@ public class CacheManagerImpl implements CacheManager {
 		}
 	}
 
+    /**
+     * @return the value to store in memcache for the provided entity
+     */
+    private Object toLevel2Value(ClassMetadata metadata, Entity entity) {
+        Object value = metadata.isCompactCache()? metadata.getCodec().encode(entity) : entity;
+        return metadata.useCompression()? CompressedValue.compress(value, metadata.getCompressThreshold(), metadata.getCompression()) : value;
+    }
+
+    /**
+     * Convert a value retrieved from memcache, storing a copy in the shared cache if configured.
+     * Compressed values are expanded first, and evicted if they are corrupt.
+     * @return the java object, or null if the value cannot be used (e.g. it was encoded with a different schema)
+     */
+    private Object fromLevel2Value(ClassMetadata metadata, Key key, Object value) {
+        if (value instanceof CompressedValue) {
+            try {
+                value = ((CompressedValue) value).getValue();
+            } catch (DataFormatException e) {
+                log.warn("Evicting corrupt cached value for " + key + ": " + e);
+                getMemcache(metadata.getCacheNamespace()).delete(key);
+                return null;
+            }
+        }
+
+        if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            if (!useSharedCache(metadata)) {
+                return metadata.getCodec().decode(key, bytes);
+            }
+            value = metadata.getCodec().decodeEntity(key, bytes);
+        }
+        if (!(value instanceof Entity)) {
+            return null;
+        }
+        Entity entity = (Entity) value;
+        if (useSharedCache(metadata)) {
+            sharedCache.put(entity, metadata.getSharedCacheSeconds());
+        }
+        return metadata.datastoreToJava(entity);
+    }
+
+    @Override
+    public Long getGeneration(String kind) {
+        if (!generationCounters) {
+            return null;
+        }
+        // increment by zero to read the counter and initialize it if missing, in a single call
+        Long generation = getMemcache(GENERATIONS_NAMESPACE).increment(kind, 0L, getInitialGeneration());
+        return generation == null? 0L : generation;
+    }
+
+    @Override
+    public void incrementGenerations(Collection<String> kinds) {
+        if (!generationCounters || kinds.isEmpty()) {
+            return;
+        }
+        getMemcache(GENERATIONS_NAMESPACE).incrementAll(kinds, 1L, getInitialGeneration());
+        if (log.isDebugEnabled()) {
+            log.debug("Incremented generation of " + kinds);
+        }
+    }
+
+    /**
+     * @return the value of a counter that is missing, e.g. because it was evicted from memcache.
+     * Counters are not restarted at zero to avoid serving query results cached with a previous generation
+     */
+    private long getInitialGeneration() {
+        return System.currentTimeMillis();
+    }
+
+
+    private boolean useSharedCache(ClassMetadata metadata) {
+        return sharedCache != null && metadata.useSharedCache();
+    }
+
     private MemcacheService getMemcache(String memcacheNamespace) {
         return MemcacheServiceFactory.getMemcacheService(memcacheNamespace);
     }
 
+    private AsyncMemcacheService getAsyncMemcache(String memcacheNamespace) {
+        return MemcacheServiceFactory.getAsyncMemcacheService(memcacheNamespace);
+    }
+
+    /**
+     * Wait for the result of an asynchronous memcache operation. Memcache errors are logged 
+     * and ignored, as the synchronous MemcacheService would do.
+     * @return the result of the operation, or null if it failed
+     */
+    private <T> T waitFor(Future<T> future, String operation, String namespace) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            log.warn("Memcache " + operation + " failed" + (namespace == null? "" : " for namespace " + namespace) + ": " + e.getCause().getMessage(), e.getCause());
+            return null;
+        }
+    }
+
 	public void setPersistenceMetadataRepository(
 			PersistenceMetadataRepository persistenceMetadataRepository) {
 		this.persistenceMetadataRepository = persistenceMetadataRepository;
 	}
 
+	/**
+	 * Set the process-wide cache to use between the Level 1 cache and memcache.
+	 * Only classes with {@link org.simpleds.annotations.Cacheable#sharedSeconds()} will be stored there.
+	 */
+	public void setSharedCache(SharedCache sharedCache) {
+		this.sharedCache = sharedCache;
+	}
+
+	public SharedCache getSharedCache() {
+		return sharedCache;
+	}
+
+	/**
+	 * Set to true to invalidate cached query results when instances of the queried kind are stored or deleted.
+	 * Each write will increment a counter in memcache, and each cached query will read it. Default is false.
+	 * @see #getGeneration(String)
+	 */
+	public void setGenerationCounters(boolean generationCounters) {
+		this.generationCounters = generationCounters;
+	}
+
+	public boolean isGenerationCounters() {
+		return generationCounters;
+	}
+
 }
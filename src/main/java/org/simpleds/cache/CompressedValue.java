@@ -0,0 +1,127 @@
+package org.simpleds.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compressed value stored in Memcache. The original value may be a byte array
+ * (as produced by {@link org.simpleds.metadata.EntityCodec}) or any serializable object.
+ * Serialized objects below the compression threshold are kept uncompressed, to avoid 
+ * serializing them again when stored in Memcache.
+ * @author icoloma
+ */
+final class CompressedValue implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** true if the original value was serialized before compression, false if it was a byte array */
+	private final boolean serialized;
+
+	/** true if data has not been compressed */
+	private final boolean uncompressed;
+
+	/** the length of the uncompressed data */
+	private final int length;
+
+	/** the compressed data */
+	private final byte[] data;
+
+	private CompressedValue(boolean serialized, boolean uncompressed, int length, byte[] data) {
+		this.serialized = serialized;
+		this.uncompressed = uncompressed;
+		this.length = length;
+		this.data = data;
+	}
+
+	/**
+	 * Compress the provided value if its size is over the threshold
+	 * @param value the value to store in Memcache
+	 * @param threshold the minimum size in bytes that will be compressed
+	 * @param compression the compression algorithm to use
+	 * @return a {@link CompressedValue}, or the original byte array if it is below the threshold
+	 */
+	static Object compress(Object value, int threshold, Compression compression) {
+		boolean serialized = !(value instanceof byte[]);
+		byte[] bytes = serialized? serialize(value) : (byte[]) value;
+		if (bytes.length < threshold) {
+			// reuse the serialized bytes instead of letting Memcache serialize the value again
+			return serialized? new CompressedValue(true, true, bytes.length, bytes) : value;
+		}
+		Deflater deflater = new Deflater(compression.getLevel());
+		try {
+			deflater.setInput(bytes);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 16);
+			byte[] buffer = new byte[4096];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return new CompressedValue(serialized, false, bytes.length, out.toByteArray());
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @return the original value
+	 * @throws DataFormatException if the value is corrupt and cannot be restored
+	 */
+	Object getValue() throws DataFormatException {
+		byte[] bytes = uncompressed? data : inflate();
+		return serialized? deserialize(bytes) : bytes;
+	}
+
+	private byte[] inflate() throws DataFormatException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			byte[] bytes = new byte[length];
+			int offset = 0;
+			while (offset < length && !inflater.finished()) {
+				int count = inflater.inflate(bytes, offset, length - offset);
+				if (count == 0 && inflater.needsInput()) {
+					throw new DataFormatException("Unexpected end of compressed data");
+				}
+				offset += count;
+			}
+			return bytes;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static byte[] serialize(Object value) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(value);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static Object deserialize(byte[] bytes) throws DataFormatException {
+		try {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+			try {
+				return in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw (DataFormatException) new DataFormatException("Cannot deserialize cached value: " + e).initCause(e);
+		} catch (ClassNotFoundException e) {
+			throw (DataFormatException) new DataFormatException("Cannot deserialize cached value: " + e).initCause(e);
+		}
+	}
+
+}
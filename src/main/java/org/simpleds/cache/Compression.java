@@ -0,0 +1,29 @@
+package org.simpleds.cache;
+
+import java.util.zip.Deflater;
+
+/**
+ * Compression algorithms available for values stored in Memcache.
+ * @see org.simpleds.annotations.Cacheable#compressThreshold()
+ * @author icoloma
+ */
+public enum Compression {
+
+	/** deflate with the default compression level */
+	DEFLATE(Deflater.DEFAULT_COMPRESSION),
+
+	/** deflate favoring speed over compression ratio */
+	DEFLATE_FAST(Deflater.BEST_SPEED);
+
+	/** the {@link Deflater} compression level */
+	private final int level;
+
+	private Compression(int level) {
+		this.level = level;
+	}
+
+	int getLevel() {
+		return level;
+	}
+
+}
@@ -1,8 +1,10 @@
 package org.simpleds.cache;
 
+import com.google.appengine.api.datastore.Key;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -10,6 +12,7 @@ import java.io.Serializable;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /** 
@@ -26,6 +29,9 @@ public class Level1Cache {
 	/** the cache contents (the key can be a Key or a String) */
 	private Cache<Serializable, Object> contents;
 	
+	/** the keys allocated during this request that have not been stored yet */
+	private final Set<Key> allocatedKeys = Sets.newConcurrentHashSet();
+	
 	private static Logger log = LoggerFactory.getLogger(Level1Cache.class);
 	
 	/**
@@ -120,6 +126,24 @@ public class Level1Cache {
 		}
 	}
 
+	/**
+	 * Remember a key that has been allocated, but not yet used to store any entity
+	 */
+	public void addAllocatedKey(Key key) {
+		allocatedKeys.add(key);
+	}
+
+	/**
+	 * @return true if the key has been allocated during this request and not stored yet
+	 */
+	public boolean isAllocatedKey(Key key) {
+		return allocatedKeys.contains(key);
+	}
+
+	public void removeAllocatedKey(Key key) {
+		allocatedKeys.remove(key);
+	}
+
     public void clear() {
         this.contents.invalidateAll();
     }
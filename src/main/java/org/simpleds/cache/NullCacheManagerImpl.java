@@ -28,6 +28,10 @@ public class NullCacheManagerImpl implements CacheManager {
 	public void put(Object instance, Entity entity, ClassMetadata metadata) {
 	}
 
+    @Override
+    public void putMissing(ClassMetadata metadata, Collection<Key> keys) {
+    }
+
     @Override
     public Map<Key, Object> get(SetMultimap<ClassMetadata, Key> keys) {
         return null;  
@@ -59,4 +63,14 @@ public class NullCacheManagerImpl implements CacheManager {
 
     }
 
+    @Override
+    public Long getGeneration(String kind) {
+        return null;
+    }
+
+    @Override
+    public void incrementGenerations(Collection<String> kinds) {
+
+    }
+
 }
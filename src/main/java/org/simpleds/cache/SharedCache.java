@@ -0,0 +1,172 @@
+package org.simpleds.cache;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+
+/**
+ * A process-wide cache of {@link Entity} instances, shared by all threads.
+ * This cache sits between the {@link Level1Cache} and memcache, and is only used
+ * with classes annotated with {@link org.simpleds.annotations.Cacheable#sharedSeconds()}.
+ * <p>
+ * Entities are stored as snapshots: the {@link Entity} is copied when stored and
+ * when returned, so every caller gets its own instance. Writes and deletes performed
+ * by this instance will update the cache, but changes performed by other instances
+ * will only be visible after the configured expiration.
+ *
+ * @author icoloma
+ */
+public class SharedCache {
+
+	/** the default maximum number of entities */
+	public static final long DEFAULT_MAXIMUM_SIZE = 10000;
+
+	/** the cache contents */
+	private final Cache<Key, CachedEntity> contents;
+
+	/** the source of time for expiration */
+	private final Ticker ticker;
+
+	private static Logger log = LoggerFactory.getLogger(SharedCache.class);
+
+	public SharedCache() {
+		this(DEFAULT_MAXIMUM_SIZE);
+	}
+
+	/**
+	 * @param maximumSize the maximum number of entities to keep in this cache
+	 */
+	public SharedCache(long maximumSize) {
+		this(maximumSize, Ticker.systemTicker());
+	}
+
+	/**
+	 * @param maximumSize the maximum number of entities to keep in this cache
+	 * @param ticker the source of time used to expire entries
+	 */
+	public SharedCache(long maximumSize, Ticker ticker) {
+		this.ticker = ticker;
+		this.contents = CacheBuilder.newBuilder()
+				.maximumSize(maximumSize)
+				.build();
+	}
+
+	/**
+	 * @return a copy of the cached entity, or null if not found or expired
+	 */
+	public Entity get(Key key) {
+		CachedEntity cached = contents.getIfPresent(key);
+		if (cached == null) {
+			return null;
+		}
+		if (cached.isExpired(ticker.read())) {
+			contents.invalidate(key);
+			return null;
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Shared cache hit: " + key);
+		}
+		return cached.entity.clone();
+	}
+
+	/**
+	 * Return the list of entities from cache. Only entries that are present and not expired will be returned
+	 */
+	public Map<Key, Entity> get(Collection<Key> keys) {
+		Map<Key, Entity> result = Maps.newHashMapWithExpectedSize(keys.size());
+		long now = ticker.read();
+		for (Key key : keys) {
+			CachedEntity cached = contents.getIfPresent(key);
+			if (cached != null) {
+				if (cached.isExpired(now)) {
+					contents.invalidate(key);
+				} else {
+					result.put(key, cached.entity.clone());
+				}
+			}
+		}
+		if (log.isDebugEnabled() && !result.isEmpty()) {
+			log.debug("Shared cache multiple hit: {}", result.keySet());
+		}
+		return result;
+	}
+
+	/**
+	 * Store a copy of the provided entity
+	 * @param entity the entity to store
+	 * @param seconds the number of seconds to keep the entity in this cache
+	 */
+	public void put(Entity entity, int seconds) {
+		contents.put(entity.getKey(), new CachedEntity(entity.clone(), ticker.read() + TimeUnit.SECONDS.toNanos(seconds)));
+	}
+
+	/**
+	 * Store a copy of the provided entities
+	 * @param entities the entities to store
+	 * @param seconds the number of seconds to keep the entities in this cache
+	 */
+	public void put(Collection<Entity> entities, int seconds) {
+		long expiration = ticker.read() + TimeUnit.SECONDS.toNanos(seconds);
+		for (Entity entity : entities) {
+			contents.put(entity.getKey(), new CachedEntity(entity.clone(), expiration));
+		}
+	}
+
+	/**
+	 * Remove the provided keys from this cache. Values that are not {@link Key} instances are ignored.
+	 */
+	public void delete(Collection<? extends Serializable> keys) {
+		for (Serializable key : keys) {
+			if (key instanceof Key) {
+				contents.invalidate(key);
+			}
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Deleted from shared cache: " + keys);
+		}
+	}
+
+	public void clear() {
+		contents.invalidateAll();
+	}
+
+	/**
+	 * @return the approximate number of entities in this cache
+	 */
+	public long size() {
+		return contents.size();
+	}
+
+	/**
+	 * An entity snapshot with its expiration time
+	 */
+	private static class CachedEntity {
+
+		final Entity entity;
+
+		/** the expiration time, in ticker nanos */
+		final long expiration;
+
+		CachedEntity(Entity entity, long expiration) {
+			this.entity = entity;
+			this.expiration = expiration;
+		}
+
+		boolean isExpired(long now) {
+			return now - expiration >= 0;
+		}
+
+	}
+
+}
@@ -0,0 +1,12 @@
+package org.simpleds.cache;
+
+/**
+ * Marker stored in the cache for keys that do not exist in the datastore.
+ * Used to implement negative caching, see {@link org.simpleds.annotations.Cacheable#negativeSeconds()}
+ * @author icoloma
+ */
+enum Tombstone {
+	
+	INSTANCE;
+	
+}
@@ -16,6 +16,8 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.math.BigDecimal;
 import java.util.*;
 
@@ -72,6 +74,12 @@ public class ConverterFactory {
 	 */
 	public <J, D> Converter<J, D> getConverter(SinglePropertyMetadata<J, D> metadata) {
 		Class<J> propertyType = metadata.getPropertyType();
+		if (LazyValue.class.isAssignableFrom(propertyType)) {
+			// J is LazyValue, checked above
+			@SuppressWarnings("unchecked")
+			Converter<J, D> converter = (Converter<J, D>) getLazyConverter(metadata);
+			return converter;
+		}
 		if (metadata.getAnnotation(AsJSON.class) != null) {
 			TypeFactory typeFactory = objectMapper.getTypeFactory();
 			JavaType type;
@@ -107,6 +115,29 @@ public class ConverterFactory {
 		return converter;
 	}
 	
+	/**
+	 * @return the converter for a {@link LazyValue} property, wrapping the converter of its generic type
+	 */
+	private LazyConverter<?, ?> getLazyConverter(SinglePropertyMetadata<?, ?> metadata) {
+		Type type = guessLazyGenericType(metadata);
+		if (!(type instanceof ParameterizedType)) {
+			throw new IllegalArgumentException("Cannot create lazy converter for unspecified value type");
+		}
+		Type valueType = ((ParameterizedType) type).getActualTypeArguments()[0];
+		if (metadata.getAnnotation(AsJSON.class) != null) {
+			JavaType javaType = objectMapper.getTypeFactory().constructType(valueType);
+			return new LazyConverter<Object, Text>(new JsonConverter<Object>(javaType, objectMapper));
+		}
+		if (!(valueType instanceof Class) || Collection.class.isAssignableFrom((Class<?>) valueType)) {
+			throw new IllegalArgumentException("Lazy properties only support collections when annotated with @AsJSON");
+		}
+		return createLazyConverter(getConverter((Class<?>) valueType));
+	}
+	
+	private static <J, D> LazyConverter<J, D> createLazyConverter(Converter<J, D> delegate) {
+		return new LazyConverter<J, D>(delegate);
+	}
+	
 	public CollectionConverter getCollectionConverter(Class<? extends Iterable> collectionType, Class<?> itemType) {
 		if (itemType == null) {
 			throw new IllegalArgumentException("Cannot create collection converter for unspecified node type");
@@ -137,6 +168,17 @@ public class ConverterFactory {
 		return null;
 	}
 	
+	private Type guessLazyGenericType(SinglePropertyMetadata<?, ?> metadata) {
+		if (metadata.getGetter() != null) {
+			return metadata.getGetter().getGenericReturnType();
+		} else if (metadata.getSetter() != null) {
+			return metadata.getSetter().getGenericParameterTypes()[0];
+		} else if (metadata.getField() != null) {
+			return metadata.getField().getGenericType();
+		}
+		return null;
+	}
+	
 	private Class[] guessMapGenericType(SinglePropertyMetadata metadata) {
 		Method getter = metadata.getGetter();
 		Method setter = metadata.getSetter();
@@ -0,0 +1,53 @@
+package org.simpleds.converter;
+
+/**
+ * Converts {@link LazyValue} properties. The datastore value is wrapped without being converted,
+ * and the delegate converter is only invoked when the value is accessed or modified in Java.
+ * @author icoloma
+ *
+ * @param <J> the java type of the delegate converter
+ * @param <D> the datastore type
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class LazyConverter<J, D> implements Converter<LazyValue<J>, D> {
+
+	/** the converter used to decode the wrapped values */
+	private Converter<J, D> delegate;
+
+	public LazyConverter(Converter<J, D> delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public LazyValue<J> datastoreToJava(D value) {
+		return value == null? new LazyValue<J>(delegate.getNullValue()) : new LazyValue<J>(value, delegate);
+	}
+
+	@Override
+	public D javaToDatastore(LazyValue<J> value) {
+		if (value == null) {
+			return null;
+		}
+		return value.isDecoded()? delegate.javaToDatastore(value.get()) : (D) value.getRaw();
+	}
+
+	@Override
+	public LazyValue<J> getNullValue() {
+		return null;
+	}
+
+	@Override
+	public Class<LazyValue<J>> getJavaType() {
+		return (Class) LazyValue.class;
+	}
+
+	@Override
+	public Class<D> getDatastoreType() {
+		return delegate.getDatastoreType();
+	}
+
+	public Converter<J, D> getDelegate() {
+		return delegate;
+	}
+
+}
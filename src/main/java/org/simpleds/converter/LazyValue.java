@@ -0,0 +1,106 @@
+package org.simpleds.converter;
+
+/**
+ * Holder of a property value that is decoded on first access.
+ * Declare a persistent property as <code>LazyValue&lt;T&gt;</code> to keep the raw datastore value
+ * (usually the {@link com.google.appengine.api.datastore.Text} of a property annotated with
+ * {@link org.simpleds.annotations.AsJSON}) when the entity is read, and convert it only
+ * when {@link #get()} is invoked:
+ * <pre>
+ * &#64;AsJSON
+ * private LazyValue&lt;Map&lt;String, Address&gt;&gt; addresses;
+ *
+ * public Map&lt;String, Address&gt; getAddresses() {
+ *     return addresses == null? null : addresses.get();
+ * }
+ *
+ * public void setAddresses(Map&lt;String, Address&gt; addresses) {
+ *     this.addresses = LazyValue.of(addresses);
+ * }
+ * </pre>
+ * When the accessors do not use the <code>LazyValue</code> type, the field is accessed directly
+ * and any annotations must be placed on the field.
+ * <p>
+ * If the value is never decoded, the raw value is written back as-is when the entity is stored.
+ * <p>
+ * This class is not thread-safe.
+ * @author icoloma
+ *
+ * @param <T> the decoded java type
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class LazyValue<T> {
+
+	/** the datastore value, not null until decoded */
+	private Object raw;
+
+	/** the converter used to decode the raw value, not null until decoded */
+	private Converter converter;
+
+	/** the decoded value */
+	private T value;
+
+	/** true if value contains the decoded value */
+	private boolean decoded;
+
+	public LazyValue() {
+		this.decoded = true;
+	}
+
+	public LazyValue(T value) {
+		this.value = value;
+		this.decoded = true;
+	}
+
+	LazyValue(Object raw, Converter<T, ?> converter) {
+		this.raw = raw;
+		this.converter = converter;
+	}
+
+	public static <T> LazyValue<T> of(T value) {
+		return new LazyValue<T>(value);
+	}
+
+	/**
+	 * @return the decoded value. The raw value is converted the first time this method is invoked
+	 */
+	public T get() {
+		if (!decoded) {
+			value = (T) converter.datastoreToJava(raw);
+			decoded = true;
+			raw = null;
+			converter = null;
+		}
+		return value;
+	}
+
+	/**
+	 * Replace the current value, discarding any raw value not decoded yet
+	 */
+	public void set(T value) {
+		this.value = value;
+		this.decoded = true;
+		this.raw = null;
+		this.converter = null;
+	}
+
+	/**
+	 * @return true if the value has already been decoded or was assigned in Java
+	 */
+	public boolean isDecoded() {
+		return decoded;
+	}
+
+	/**
+	 * @return the raw datastore value, null if already decoded
+	 */
+	Object getRaw() {
+		return raw;
+	}
+
+	@Override
+	public String toString() {
+		return decoded? String.valueOf(value) : "LazyValue { not decoded }";
+	}
+
+}
@@ -0,0 +1,84 @@
+package org.simpleds.exception;
+
+import java.util.List;
+
+/**
+ * Thrown by the bulk methods of EntityManager when one or more chunks fail.
+ * Chunks that succeeded have been applied, and their results are available with {@link #getResult()}.
+ * The first failure is used as the cause of this exception.
+ * @author icoloma
+ *
+ */
+public class BulkOperationException extends PersistenceException {
+
+	/** the total number of chunks */
+	private final int chunks;
+
+	/** the failed chunks */
+	private final List<ChunkFailure> failures;
+
+	/** the merged results of the successful chunks. May be null */
+	private final Object result;
+
+	public BulkOperationException(int chunks, List<ChunkFailure> failures, Object result) {
+		super(failures.size() + " out of " + chunks + " chunks failed. First failure: " + failures.get(0).getCause(), failures.get(0).getCause());
+		this.chunks = chunks;
+		this.failures = failures;
+		this.result = result;
+	}
+
+	public int getChunks() {
+		return chunks;
+	}
+
+	public List<ChunkFailure> getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @return the merged results of the successful chunks, or null if the operation does not return anything
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getResult() {
+		return (T) result;
+	}
+
+	/**
+	 * A chunk that could not be processed
+	 */
+	public static class ChunkFailure {
+
+		/** the position of the chunk, starting with 0 */
+		private final int index;
+
+		/** the items in the chunk (java objects or keys) */
+		private final List<?> items;
+
+		private final Throwable cause;
+
+		public ChunkFailure(int index, List<?> items, Throwable cause) {
+			this.index = index;
+			this.items = items;
+			this.cause = cause;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public List<?> getItems() {
+			return items;
+		}
+
+		public Throwable getCause() {
+			return cause;
+		}
+
+		@Override
+		public String toString() {
+			return "ChunkFailure { index=" + index + ", items=" + items.size() + ", cause=" + cause + " }";
+		}
+
+	}
+
+}
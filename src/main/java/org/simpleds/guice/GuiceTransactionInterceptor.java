@@ -1,30 +1,49 @@
 package org.simpleds.guice;
 
+import java.util.concurrent.Callable;
+
 import javax.inject.Inject;
 
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
+import org.simpleds.annotations.Transactional;
 import org.simpleds.tx.TransactionManager;
+import org.simpleds.tx.TransactionRunner;
 
 public class GuiceTransactionInterceptor implements MethodInterceptor {
 
 	@Inject
-	private TransactionManager transactionManager;
-
-	public Object invoke(MethodInvocation invocation) throws Throwable {
-		
-		try {
-			Object result = invocation.proceed();
-			transactionManager.commit();
-			return result;
-		} catch (Exception e) {
-			transactionManager.rollback();
-			throw e;
-		}
+	private TransactionRunner transactionRunner;
+
+	public Object invoke(final MethodInvocation invocation) throws Throwable {
+		Transactional transactional = invocation.getMethod().getAnnotation(Transactional.class);
+		int retries = transactional == null? 0 : transactional.retries();
+		long backoff = transactional == null? 0 : transactional.backoff();
+		return transactionRunner.run(retries, backoff, new Callable<Object>() {
+
+			@Override
+			public Object call() throws Exception {
+				try {
+					return invocation.proceed();
+				} catch (Exception e) {
+					throw e;
+				} catch (Error e) {
+					throw e;
+				} catch (Throwable e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+		});
 	}
 
 	public void setTransactionManager(TransactionManager transactionManager) {
-		this.transactionManager = transactionManager;
+		this.transactionRunner = new TransactionRunner();
+		this.transactionRunner.setTransactionManager(transactionManager);
+	}
+
+	public void setTransactionRunner(TransactionRunner transactionRunner) {
+		this.transactionRunner = transactionRunner;
 	}
 
-}
\ No newline at end of file
+}
@@ -2,17 +2,15 @@ package org.simpleds.metadata;
 
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 
 import org.simpleds.annotations.Property;
 import org.simpleds.annotations.Transient;
 import org.simpleds.cache.CacheManager;
+import org.simpleds.cache.Compression;
 import org.simpleds.exception.ConfigException;
 import org.simpleds.exception.DuplicateException;
 import org.simpleds.exception.RequiredFieldException;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
@@ -47,6 +45,24 @@ public class ClassMetadata {
 	
 	/** the number of seconds that this class can be cached in memcache */
 	private Integer cacheSeconds;
+	
+	/** the number of seconds that this class can be cached in the shared cache, 0 to disable */
+	private int sharedCacheSeconds;
+	
+	/** the number of seconds that missing keys of this class can be cached, 0 to disable */
+	private int negativeCacheSeconds;
+	
+	/** true to retrieve entities from the cache and the datastore at the same time */
+	private boolean speculativeGet;
+	
+	/** true to store entities of this class in memcache using {@link EntityCodec} */
+	private boolean compactCache;
+	
+	/** the minimum size in bytes of memcache values that will be compressed, 0 to disable */
+	private int compressThreshold;
+	
+	/** the compression algorithm to use with memcache values */
+	private Compression compression = Compression.DEFLATE;
 
     /** the cache namespace to use. If null, a shared namespace will be used */
     private String cacheNamespace = CacheManager.ENTITIES_NAMESPACE;
@@ -54,25 +70,26 @@ public class ClassMetadata {
 	/** manages a ny Version attribute. May be null */
 	private VersionManager versionManager;
 	
-	private static Logger log = LoggerFactory.getLogger(ClassMetadata.class);
+	/** creates new instances of the persistent class */
+	private Instantiator<?> instantiator;
+	
+	/** the compiled mapper for this class, created by compile() */
+	private volatile EntityMapper mapper;
+	
+	/** the codec used to store instances in memcache, created lazily */
+	private volatile EntityCodec codec;
 	
 	/**
 	 * Convert a value from Google representation to a Java value
 	 * @param entity the persistent {@link Entity} from the google datastore
 	 */
 	public <T> T datastoreToJava(Entity entity) {
-		try {
-			if (entity == null) {
-				return null;
-			}
-			T result = (T) persistentClass.newInstance();
-			populate(entity, result);
-			return result;
-		} catch (InstantiationException e) {
-			throw new RuntimeException(e);
-		} catch (IllegalAccessException e) {
-			throw new RuntimeException(e);
+		if (entity == null) {
+			return null;
 		}
+		T result = (T) getInstantiator().newInstance();
+		populate(entity, result);
+		return result;
 	}
 
 	/**
@@ -81,18 +98,7 @@ public class ClassMetadata {
 	 * @param to the java object to populate. Cannot be null.
 	 */
 	public void populate(Entity from, Object to) {
-		for (Entry<String, Object> property : from.getProperties().entrySet()) {
-			PropertyMetadata metadata = properties.get(property.getKey());
-			if (metadata != null) {
-				Object value = metadata.getConverter().datastoreToJava(property.getValue());
-				metadata.setValue(to, value);
-			} else {
-				if (log.isDebugEnabled()) {
-					log.debug("Unmapped attribute found in DataStore entry. Ignoring: " + from.getKind() + "." + property.getKey());
-				} 
-			}
-		}
-		keyProperty.setValue(to, from.getKey());
+		getMapper().populate(from, to);
 	}
 	
 	/**
@@ -116,14 +122,43 @@ public class ClassMetadata {
 	public Entity javaToDatastore(Key parentKey, Object javaObject) {
 		Key key = keyProperty.getValue(javaObject);
 		Entity entity = key == null? new Entity(kind, parentKey) : new Entity(key); 
-		for (Entry<String, PropertyMetadata<?, ?>> entry : properties.entrySet()) {
-			PropertyMetadata property = entry.getValue();
-			Object javaValue = property.getValue(javaObject);
-			property.setEntityValue(entity, javaValue);
-		}
+		getMapper().populate(javaObject, entity);
 		return entity;
 	}
 	
+	/**
+	 * Compile the {@link EntityMapper} used to convert instances of this class. 
+	 * This method is invoked once the class has been registered, and is invoked again
+	 * if any property is modified afterwards.
+	 */
+	public void compile() {
+		mapper = new EntityMapper(kind, keyProperty, properties.values());
+		codec = null;
+	}
+	
+	/**
+	 * @return the compiled {@link EntityMapper} for this class
+	 */
+	public EntityMapper getMapper() {
+		EntityMapper result = mapper;
+		if (result == null) {
+			compile();
+			result = mapper;
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the {@link EntityCodec} used to store instances of this class in memcache
+	 */
+	public EntityCodec getCodec() {
+		EntityCodec result = codec;
+		if (result == null) {
+			result = codec = new EntityCodec(getMapper(), getInstantiator());
+		}
+		return result;
+	}
+	
 	public void validate() {
 		if (keyProperty == null) {
 			throw new IllegalArgumentException("No key property specified for persistent class " + persistentClass.getSimpleName());
@@ -152,6 +187,8 @@ public class ClassMetadata {
 			}
 			properties.put(property.getName(), property);
 		}
+		mapper = null;
+		codec = null;
 	}
 	
 	/**
@@ -167,6 +204,23 @@ public class ClassMetadata {
 
 	public void setPersistentClass(Class<?> persistentClass) {
 		this.persistentClass = persistentClass;
+		this.instantiator = null;
+		this.codec = null;
+	}
+
+	/**
+	 * @return the {@link Instantiator} used to create new instances of the persistent class
+	 */
+	public Instantiator<?> getInstantiator() {
+		if (instantiator == null) {
+			instantiator = Instantiator.create(persistentClass, null);
+		}
+		return instantiator;
+	}
+
+	public void setInstantiator(Instantiator<?> instantiator) {
+		this.instantiator = instantiator;
+		this.codec = null;
 	}
 
 	public <J, D> PropertyMetadata<J, D> getProperty(String propertyName) {
@@ -205,9 +259,19 @@ public class ClassMetadata {
 	public Iterator<String> getPropertyNames() {
 		return properties.keySet().iterator();
 	}
+	
+	/**
+	 * @return true if this class contains a persistent property with the provided name
+	 */
+	public boolean hasProperty(String propertyName) {
+		return properties.containsKey(propertyName);
+	}
+
 
 	public void setProperties(Map<String, PropertyMetadata<?, ?>> properties) {
 		this.properties = properties;
+		this.mapper = null;
+		this.codec = null;
 	}
 	public boolean isGenerateKeyValue() {
 		return generateKeyValue;
@@ -252,6 +316,75 @@ public class ClassMetadata {
 		return cacheSeconds != null && cacheSeconds > 0;
 	}
 
+	public int getSharedCacheSeconds() {
+		return sharedCacheSeconds;
+	}
+
+	public void setSharedCacheSeconds(int sharedCacheSeconds) {
+		this.sharedCacheSeconds = sharedCacheSeconds;
+	}
+
+	/**
+	 * @return true if this class can be stored in the shared cache
+	 */
+	public boolean useSharedCache() {
+		return cacheSeconds != null && sharedCacheSeconds > 0;
+	}
+
+	public int getNegativeCacheSeconds() {
+		return negativeCacheSeconds;
+	}
+
+	public void setNegativeCacheSeconds(int negativeCacheSeconds) {
+		this.negativeCacheSeconds = negativeCacheSeconds;
+	}
+
+	/**
+	 * @return true if missing keys of this class should be cached
+	 */
+	public boolean useNegativeCache() {
+		return cacheSeconds != null && negativeCacheSeconds > 0;
+	}
+
+	public boolean isSpeculativeGet() {
+		return speculativeGet;
+	}
+
+	public void setSpeculativeGet(boolean speculativeGet) {
+		this.speculativeGet = speculativeGet;
+	}
+
+	public boolean isCompactCache() {
+		return compactCache;
+	}
+
+	public void setCompactCache(boolean compactCache) {
+		this.compactCache = compactCache;
+	}
+
+	public int getCompressThreshold() {
+		return compressThreshold;
+	}
+
+	public void setCompressThreshold(int compressThreshold) {
+		this.compressThreshold = compressThreshold;
+	}
+
+	public Compression getCompression() {
+		return compression;
+	}
+
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * @return true if large memcache values of this class should be compressed
+	 */
+	public boolean useCompression() {
+		return compressThreshold > 0;
+	}
+
 	public void setVersionManager(VersionManager versionManager) {
 		if (this.versionManager != null) {
 			throw new ConfigException("@Version specified twice for " + persistentClass.getName());
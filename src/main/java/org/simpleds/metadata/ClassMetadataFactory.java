@@ -38,6 +38,12 @@ public class ClassMetadataFactory {
 	
 	/** maximum number of characters recommended for a property name */
 	private int maxPropertyLength = 3;
+	
+	/** true to access properties using generated accessors instead of reflection, default false */
+	private boolean generateAccessors;
+
+	/** the factory used to create persistent and embedded instances. If null, the no-arg constructor will be used */
+	private InstanceFactory instanceFactory;
 
 	@Inject
 	private ConverterFactory converterFactory;
@@ -45,6 +51,7 @@ public class ClassMetadataFactory {
 	public ClassMetadata createMetadata(Class<?> clazz) {
 		ClassMetadata metadata = new ClassMetadata();
 		metadata.setPersistentClass(clazz);
+		metadata.setInstantiator(Instantiator.create(clazz, instanceFactory));
 		String kind = getKind(clazz);
 		if (kind.length() > maxKindLength) {
 			throw new ConfigException(kind + " is a long name for an entity kind. Consider using @Entity to make it shorter, which will save space in the Datastore. Use " + 
@@ -87,6 +94,12 @@ public class ClassMetadataFactory {
 			if (clazz.getAnnotation(Cacheable.class) != null) {
 				Cacheable cacheable = clazz.getAnnotation(Cacheable.class);
 				classMetadata.setCacheSeconds(cacheable.value());
+				classMetadata.setSharedCacheSeconds(cacheable.sharedSeconds());
+				classMetadata.setNegativeCacheSeconds(cacheable.negativeSeconds());
+				classMetadata.setSpeculativeGet(cacheable.speculative());
+				classMetadata.setCompactCache(cacheable.compact());
+				classMetadata.setCompressThreshold(cacheable.compressThreshold());
+				classMetadata.setCompression(cacheable.compression());
                 classMetadata.setCacheNamespace(cacheable.namespace());
 			}
 			
@@ -120,6 +133,9 @@ public class ClassMetadataFactory {
 	}
 
 	private <J, D> void addProperty(ClassMetadata classMetadata, SinglePropertyMetadata<J, D> propertyMetadata) {
+		if (generateAccessors) {
+			propertyMetadata.setAccessor(createAccessor(propertyMetadata));
+		}
 		if (propertyMetadata.getAnnotation(org.simpleds.annotations.Embedded.class) != null) {
 			addEmbeddedProperties(classMetadata, propertyMetadata);
 		} else {
@@ -144,10 +160,27 @@ public class ClassMetadataFactory {
 		}
 	}
 
+	/**
+	 * Generate the accessor for the provided property. 
+	 * @return the generated accessor, or null if reflection should be used instead
+	 */
+	private PropertyAccessor createAccessor(SinglePropertyMetadata<?, ?> propertyMetadata) {
+		try {
+			return MethodHandlePropertyAccessor.create(propertyMetadata);
+		} catch (IllegalAccessException e) {
+			log.debug("Cannot generate accessor for property " + propertyMetadata.getName() + ", using reflection instead: " + e.getMessage());
+			return null;
+		} catch (SecurityException e) {
+			log.debug("Cannot generate accessor for property " + propertyMetadata.getName() + ", using reflection instead: " + e.getMessage());
+			return null;
+		}
+	}
+
 	/**
 	 * Recursively processes all nested {@link Embedded} properties and adds them as {@link EmbeddedPropertyMetadata} instances
 	 */
 	private void addEmbeddedProperties(ClassMetadata classMetadata, SinglePropertyMetadata propertyMetadata) {
+		propertyMetadata.setInstantiator(Instantiator.create(propertyMetadata.getPropertyType(), instanceFactory));
 		ClassMetadata nested = new ClassMetadata();
 		nested.setPersistentClass(propertyMetadata.getPropertyType());
 		visit(nested.getPersistentClass(), nested, new HashSet<String>());
@@ -211,5 +244,21 @@ public class ClassMetadataFactory {
 	public void setMaxPropertyLength(int maxPropertyLength) {
 		this.maxPropertyLength = maxPropertyLength;
 	}
+
+	/**
+	 * Set to true to access persistent properties with generated accessors instead of reflection.
+	 * Properties that cannot be accessed this way will keep using reflection.
+	 */
+	public void setGenerateAccessors(boolean generateAccessors) {
+		this.generateAccessors = generateAccessors;
+	}
+
+	/**
+	 * Set the factory used to create instances of persistent and embedded classes. 
+	 * If not set, the no-arg constructor of each class will be used.
+	 */
+	public void setInstanceFactory(InstanceFactory instanceFactory) {
+		this.instanceFactory = instanceFactory;
+	}
 	
 }
@@ -91,24 +91,18 @@ public class EmbeddedPropertyMetadata<J, D> extends AbstractPropertyMetadata<J,
 
 	@Override
 	public void setValue(Object container, Object value) {
-		try {
-			for (Iterator<SinglePropertyMetadata> i = nodes.iterator(); i.hasNext(); ) {
-				SinglePropertyMetadata node = i.next();
-				if (!i.hasNext()) {
-					node.setValue(container, value);
-				} else {
-					Object newContainer = node.getValue(container);
-					if (newContainer == null) {
-						newContainer = node.getPropertyType().newInstance();
-						node.setValue(container, newContainer);
-					}
-					container = newContainer;
+		for (Iterator<SinglePropertyMetadata> i = nodes.iterator(); i.hasNext(); ) {
+			SinglePropertyMetadata node = i.next();
+			if (!i.hasNext()) {
+				node.setValue(container, value);
+			} else {
+				Object newContainer = node.getValue(container);
+				if (newContainer == null) {
+					newContainer = node.getInstantiator().newInstance();
+					node.setValue(container, newContainer);
 				}
+				container = newContainer;
 			}
-		} catch (InstantiationException e) {
-			throw new RuntimeException(e);
-		} catch (IllegalAccessException e) {
-			throw new RuntimeException(e);
 		}
 	}
 
@@ -0,0 +1,394 @@
+package org.simpleds.metadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import org.simpleds.metadata.EntityMapper.Slot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Compact binary representation of the persistent properties of a class, used to store entities in memcache.
+ * Properties are written by position in a fixed order instead of by name, and numbers are written as varints.
+ * <p>
+ * Every encoded value starts with the format version and a hash of the class schema (kind, property names
+ * and converters). Values written with a different version or schema are rejected when decoding,
+ * so they are handled as cache misses after the persistent class changes.
+ * <p>
+ * The entity key is not included, since it is always known by the caller.
+ * Datastore types that have no specific representation are written using Java serialization.
+ * @author icoloma
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class EntityCodec {
+
+	/** the current version of the binary format */
+	static final byte FORMAT_VERSION = 1;
+
+	private static final byte ABSENT = 0;
+	private static final byte NULL = 1;
+	private static final byte LONG = 2;
+	private static final byte DOUBLE = 3;
+	private static final byte TRUE = 4;
+	private static final byte FALSE = 5;
+	private static final byte STRING = 6;
+	private static final byte DATE = 7;
+	private static final byte KEY = 8;
+	private static final byte TEXT = 9;
+	private static final byte BLOB = 10;
+	private static final byte SHORT_BLOB = 11;
+	private static final byte LIST = 12;
+	private static final byte SERIALIZED = 13;
+
+	/** the mapped properties, sorted by name */
+	private final Slot[] slots;
+
+	/** the key property */
+	private final PropertyMetadata keyProperty;
+
+	/** the class used to instantiate decoded values */
+	private final Instantiator<?> instantiator;
+
+	/** hash of the class schema */
+	private final int schemaHash;
+
+	private static Logger log = LoggerFactory.getLogger(EntityCodec.class);
+
+	public EntityCodec(EntityMapper mapper, Instantiator<?> instantiator) {
+		this.slots = mapper.getSlots().clone();
+		Arrays.sort(slots, new Comparator<Slot>() {
+
+			@Override
+			public int compare(Slot o1, Slot o2) {
+				return o1.name.compareTo(o2.name);
+			}
+
+		});
+		this.keyProperty = mapper.getKeyProperty();
+		this.instantiator = instantiator;
+		Hasher hasher = Hashing.murmur3_32().newHasher()
+				.putString(mapper.getKind(), Charsets.UTF_8);
+		for (Slot slot : slots) {
+			hasher.putString(slot.name, Charsets.UTF_8)
+				.putString(slot.converter.getClass().getName(), Charsets.UTF_8)
+				.putString(String.valueOf(slot.converter.getDatastoreType()), Charsets.UTF_8)
+				.putBoolean(slot.indexed);
+		}
+		this.schemaHash = hasher.hash().asInt();
+	}
+
+	/**
+	 * Encode the mapped properties of the provided entity.
+	 * Properties not mapped by the persistent class are discarded.
+	 */
+	public byte[] encode(Entity entity) {
+		try {
+			Output out = new Output();
+			out.write(FORMAT_VERSION);
+			out.writeInt(schemaHash);
+			for (Slot slot : slots) {
+				if (entity.hasProperty(slot.name)) {
+					writeValue(out, entity.getProperty(slot.name));
+				} else {
+					out.write(ABSENT);
+				}
+			}
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Decode a value produced by {@link #encode(Entity)} into a new instance of the persistent class
+	 * @param key the key of the encoded entity
+	 * @param bytes the encoded value
+	 * @return the decoded instance, or null if the value was encoded with a different format or schema
+	 */
+	public <T> T decode(Key key, byte[] bytes) {
+		Input in = open(bytes);
+		if (in == null) {
+			return null;
+		}
+		try {
+			T result = (T) instantiator.newInstance();
+			for (Slot slot : slots) {
+				byte tag = in.read();
+				if (tag != ABSENT) {
+					slot.populate(readValue(in, tag), result);
+				}
+			}
+			keyProperty.setValue(result, key);
+			return result;
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		} catch (Exception e) {
+			log.warn("Cannot decode cached value for " + key + ". Ignoring", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Decode a value produced by {@link #encode(Entity)} into a datastore {@link Entity}
+	 * @param key the key of the encoded entity
+	 * @param bytes the encoded value
+	 * @return the decoded entity, or null if the value was encoded with a different format or schema
+	 */
+	public Entity decodeEntity(Key key, byte[] bytes) {
+		Input in = open(bytes);
+		if (in == null) {
+			return null;
+		}
+		try {
+			Entity entity = new Entity(key);
+			for (Slot slot : slots) {
+				byte tag = in.read();
+				if (tag != ABSENT) {
+					Object value = readValue(in, tag);
+					if (slot.indexed) {
+						entity.setProperty(slot.name, value);
+					} else {
+						entity.setUnindexedProperty(slot.name, value);
+					}
+				}
+			}
+			return entity;
+		} catch (Exception e) {
+			log.warn("Cannot decode cached value for " + key + ". Ignoring", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Check the header of an encoded value.
+	 * @return the input positioned after the header, null if the header does not match this codec
+	 */
+	private Input open(byte[] bytes) {
+		if (bytes.length < 5 || bytes[0] != FORMAT_VERSION) {
+			return null;
+		}
+		Input in = new Input(bytes);
+		in.position = 1;
+		return in.readInt() == schemaHash? in : null;
+	}
+
+	private void writeValue(Output out, Object value) throws IOException {
+		if (value == null) {
+			out.write(NULL);
+		} else if (value instanceof Long) {
+			out.write(LONG);
+			out.writeVarLong(zigzag((Long) value));
+		} else if (value instanceof Double) {
+			out.write(DOUBLE);
+			out.writeLong(Double.doubleToRawLongBits((Double) value));
+		} else if (value instanceof Boolean) {
+			out.write((Boolean) value? TRUE : FALSE);
+		} else if (value instanceof String) {
+			out.write(STRING);
+			out.writeString((String) value);
+		} else if (value instanceof Date) {
+			out.write(DATE);
+			out.writeVarLong(zigzag(((Date) value).getTime()));
+		} else if (value instanceof Key) {
+			out.write(KEY);
+			out.writeString(KeyFactory.keyToString((Key) value));
+		} else if (value instanceof Text) {
+			out.write(TEXT);
+			out.writeString(((Text) value).getValue());
+		} else if (value instanceof Blob) {
+			out.write(BLOB);
+			out.writeByteArray(((Blob) value).getBytes());
+		} else if (value instanceof ShortBlob) {
+			out.write(SHORT_BLOB);
+			out.writeByteArray(((ShortBlob) value).getBytes());
+		} else if (value instanceof Collection) {
+			Collection<?> items = (Collection<?>) value;
+			out.write(LIST);
+			out.writeVarLong(items.size());
+			for (Object item : items) {
+				writeValue(out, item);
+			}
+		} else {
+			out.write(SERIALIZED);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			oos.writeObject(value);
+			oos.close();
+			out.writeByteArray(bytes.toByteArray());
+		}
+	}
+
+	private Object readValue(Input in, byte tag) throws IOException, ClassNotFoundException {
+		switch (tag) {
+		case NULL:
+			return null;
+		case LONG:
+			return unzigzag(in.readVarLong());
+		case DOUBLE:
+			return Double.longBitsToDouble(in.readLong());
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case STRING:
+			return in.readString();
+		case DATE:
+			return new Date(unzigzag(in.readVarLong()));
+		case KEY:
+			return KeyFactory.stringToKey(in.readString());
+		case TEXT:
+			return new Text(in.readString());
+		case BLOB:
+			return new Blob(in.readBytes());
+		case SHORT_BLOB:
+			return new ShortBlob(in.readBytes());
+		case LIST:
+			int size = (int) in.readVarLong();
+			List<Object> items = new ArrayList<Object>(size);
+			for (int i = 0; i < size; i++) {
+				items.add(readValue(in, in.read()));
+			}
+			return items;
+		case SERIALIZED:
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(in.readBytes()));
+			try {
+				return ois.readObject();
+			} finally {
+				ois.close();
+			}
+		default:
+			throw new IOException("Unknown tag " + tag);
+		}
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * The output buffer
+	 */
+	private static class Output extends ByteArrayOutputStream {
+
+		Output() {
+			super(64);
+		}
+
+		void writeVarLong(long value) {
+			while ((value & ~0x7FL) != 0) {
+				write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		void writeInt(int value) {
+			write(value >>> 24);
+			write(value >>> 16);
+			write(value >>> 8);
+			write(value);
+		}
+
+		void writeLong(long value) {
+			writeInt((int) (value >>> 32));
+			writeInt((int) value);
+		}
+
+		void writeByteArray(byte[] value) {
+			writeVarLong(value.length);
+			write(value, 0, value.length);
+		}
+
+		void writeString(String value) {
+			writeByteArray(value.getBytes(Charsets.UTF_8));
+		}
+
+	}
+
+	/**
+	 * The input buffer
+	 */
+	private static class Input {
+
+		private final byte[] bytes;
+
+		private int position;
+
+		Input(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		byte read() throws IOException {
+			if (position >= bytes.length) {
+				throw new IOException("Unexpected end of data");
+			}
+			return bytes[position++];
+		}
+
+		long readVarLong() throws IOException {
+			long result = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = read();
+				result |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		int readInt() {
+			int result = 0;
+			for (int i = 0; i < 4; i++) {
+				result = (result << 8) | (bytes[position++] & 0xFF);
+			}
+			return result;
+		}
+
+		long readLong() throws IOException {
+			if (position + 8 > bytes.length) {
+				throw new IOException("Unexpected end of data");
+			}
+			return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+		}
+
+		byte[] readBytes() throws IOException {
+			int length = (int) readVarLong();
+			if (length < 0 || position + length > bytes.length) {
+				throw new IOException("Unexpected end of data");
+			}
+			byte[] result = Arrays.copyOfRange(bytes, position, position + length);
+			position += length;
+			return result;
+		}
+
+		String readString() throws IOException {
+			return new String(readBytes(), Charsets.UTF_8);
+		}
+
+	}
+
+}
@@ -0,0 +1,221 @@
+package org.simpleds.metadata;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import org.simpleds.converter.Converter;
+import org.simpleds.converter.IntegerConverter;
+import org.simpleds.converter.NullConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+/**
+ * Copies all persistent properties between a persistent class and a datastore {@link Entity}.
+ * The list of properties is resolved once when the {@link ClassMetadata} is compiled, so
+ * converting an instance walks a flat array instead of looking up each property by name.
+ * Properties stored in a long, int or boolean field with the default converter skip
+ * the boxing step of the converter.
+ * @author icoloma
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class EntityMapper {
+
+	/** the kind of mapped entities */
+	private final String kind;
+
+	/** the persistent properties, in no particular order */
+	private final Slot[] slots;
+
+	/** the primary key property */
+	private final PropertyMetadata keyProperty;
+
+	private static Logger log = LoggerFactory.getLogger(EntityMapper.class);
+
+	EntityMapper(String kind, PropertyMetadata keyProperty, Collection<PropertyMetadata<?, ?>> properties) {
+		this.kind = kind;
+		this.keyProperty = keyProperty;
+		this.slots = new Slot[properties.size()];
+		int i = 0;
+		for (PropertyMetadata property : properties) {
+			slots[i++] = createSlot(property);
+		}
+	}
+
+	private static Slot createSlot(PropertyMetadata property) {
+		if (property instanceof SinglePropertyMetadata) {
+			SinglePropertyMetadata single = (SinglePropertyMetadata) property;
+			Field field = single.getField();
+			if (single.getGetter() == null && single.getSetter() == null && field != null && !Modifier.isFinal(field.getModifiers())) {
+				Class<?> type = field.getType();
+				Class<?> converterClass = single.getConverter().getClass();
+				if ((type == Long.TYPE || type == Boolean.TYPE) && converterClass == NullConverter.class) {
+					return new Slot(property, type == Long.TYPE? PrimitiveType.LONG : PrimitiveType.BOOLEAN, field);
+				} else if (type == Integer.TYPE && converterClass == IntegerConverter.class) {
+					return new Slot(property, PrimitiveType.INT, field);
+				}
+			}
+		}
+		return new Slot(property, null, null);
+	}
+
+	/**
+	 * Copy all properties from the datastore entity into the persistent class instance passed as an attribute.
+	 * Properties that are not present in the entity are left untouched.
+	 * @param from the entity read from the datastore
+	 * @param to the java object to populate. Cannot be null.
+	 */
+	public void populate(Entity from, Object to) {
+		try {
+			for (Slot slot : slots) {
+				if (from.hasProperty(slot.name)) {
+					slot.populate(from.getProperty(slot.name), to);
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+		keyProperty.setValue(to, from.getKey());
+		if (log.isDebugEnabled()) {
+			logUnmappedProperties(from);
+		}
+	}
+
+	/**
+	 * Copy all properties from the persistent class instance into the datastore entity
+	 * @param from the java object to read
+	 * @param to the entity to populate
+	 */
+	public void populate(Object from, Entity to) {
+		try {
+			for (Slot slot : slots) {
+				slot.populate(from, to);
+			}
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void logUnmappedProperties(Entity from) {
+		Set<String> propertyNames = ImmutableSet.copyOf(getPropertyNames());
+		for (String propertyName : from.getProperties().keySet()) {
+			if (!propertyNames.contains(propertyName)) {
+				log.debug("Unmapped attribute found in DataStore entry. Ignoring: " + kind + "." + propertyName);
+			}
+		}
+	}
+
+	/**
+	 * @return the names of the mapped properties, in the same order used by this mapper
+	 */
+	public List<String> getPropertyNames() {
+		List<String> names = Lists.newArrayListWithCapacity(slots.length);
+		for (Slot slot : slots) {
+			names.add(slot.name);
+		}
+		return names;
+	}
+
+	/**
+	 * @return the mapped properties, in the same order used by this mapper
+	 */
+	public List<PropertyMetadata<?, ?>> getProperties() {
+		ImmutableList.Builder<PropertyMetadata<?, ?>> builder = ImmutableList.builder();
+		for (Slot slot : slots) {
+			builder.add(slot.property);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @return the slots used by this mapper. Used by {@link EntityCodec}
+	 */
+	Slot[] getSlots() {
+		return slots;
+	}
+
+	String getKind() {
+		return kind;
+	}
+
+	PropertyMetadata getKeyProperty() {
+		return keyProperty;
+	}
+
+	private enum PrimitiveType {
+		LONG, INT, BOOLEAN
+	}
+
+	/**
+	 * A single persistent property
+	 */
+	static class Slot {
+
+		/** the property name */
+		final String name;
+
+		/** the property metadata */
+		final PropertyMetadata property;
+
+		/** the converter of the property */
+		final Converter converter;
+
+		/** true if the property is indexed */
+		final boolean indexed;
+
+		/** not null if the property is stored in a primitive field that can be accessed directly */
+		final PrimitiveType primitiveType;
+
+		/** the field to use with primitiveType */
+		final Field field;
+
+		Slot(PropertyMetadata property, PrimitiveType primitiveType, Field field) {
+			this.name = property.getName();
+			this.property = property;
+			this.converter = property.getConverter();
+			this.indexed = property.isIndexed();
+			this.primitiveType = primitiveType;
+			this.field = field;
+		}
+
+		void populate(Object dsValue, Object to) throws IllegalAccessException {
+			if (primitiveType == PrimitiveType.LONG && dsValue instanceof Long) {
+				field.setLong(to, ((Long) dsValue).longValue());
+			} else if (primitiveType == PrimitiveType.INT && dsValue instanceof Long) {
+				field.setInt(to, ((Long) dsValue).intValue());
+			} else if (primitiveType == PrimitiveType.BOOLEAN && dsValue instanceof Boolean) {
+				field.setBoolean(to, ((Boolean) dsValue).booleanValue());
+			} else {
+				property.setValue(to, converter.datastoreToJava(dsValue));
+			}
+		}
+
+		void populate(Object from, Entity to) throws IllegalAccessException {
+			Object dsValue;
+			if (primitiveType == PrimitiveType.LONG) {
+				dsValue = field.getLong(from);
+			} else if (primitiveType == PrimitiveType.INT) {
+				dsValue = (long) field.getInt(from);
+			} else if (primitiveType == PrimitiveType.BOOLEAN) {
+				dsValue = field.getBoolean(from);
+			} else {
+				property.setEntityValue(to, property.getValue(from));
+				return;
+			}
+			if (indexed) {
+				to.setProperty(name, dsValue);
+			} else {
+				to.setUnindexedProperty(name, dsValue);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,17 @@
+package org.simpleds.metadata;
+
+/**
+ * Creates instances of persistent and embedded classes when they are read from the datastore.
+ * Can be configured with {@link ClassMetadataFactory#setInstanceFactory(InstanceFactory)} to 
+ * return pooled or pre-initialized instances.
+ * @author icoloma
+ */
+public interface InstanceFactory {
+
+	/**
+	 * @param clazz the persistent or embedded class to instantiate
+	 * @return a new instance of the provided class
+	 */
+	public <T> T newInstance(Class<T> clazz);
+	
+}
@@ -0,0 +1,74 @@
+package org.simpleds.metadata;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Creates instances of a single class. The no-arg constructor is resolved once and
+ * made accessible, which avoids the security checks of Class.newInstance() for each 
+ * instance. If an {@link InstanceFactory} is provided it will be used instead.
+ * @author icoloma
+ */
+public class Instantiator<T> {
+
+	/** the class to instantiate */
+	private final Class<T> clazz;
+	
+	/** the no-arg constructor, null if not available */
+	private final Constructor<T> constructor;
+	
+	/** the user-supplied factory. May be null */
+	private final InstanceFactory instanceFactory;
+	
+	private Instantiator(Class<T> clazz, Constructor<T> constructor, InstanceFactory instanceFactory) {
+		this.clazz = clazz;
+		this.constructor = constructor;
+		this.instanceFactory = instanceFactory;
+	}
+
+	/**
+	 * Create an instantiator for the provided class
+	 * @param clazz the class to instantiate
+	 * @param instanceFactory the factory to use. If null, the no-arg constructor of the class will be used.
+	 */
+	public static <T> Instantiator<T> create(Class<T> clazz, InstanceFactory instanceFactory) {
+		Constructor<T> constructor = null;
+		if (instanceFactory == null) {
+			try {
+				constructor = clazz.getDeclaredConstructor();
+				constructor.setAccessible(true);
+			} catch (NoSuchMethodException e) {
+				// fail when the first instance is requested, as Class.newInstance() would
+			} catch (SecurityException e) {
+				constructor = null;
+			}
+		}
+		return new Instantiator<T>(clazz, constructor, instanceFactory);
+	}
+	
+	/**
+	 * @return a new instance of the class
+	 */
+	public T newInstance() {
+		if (instanceFactory != null) {
+			return instanceFactory.newInstance(clazz);
+		}
+		try {
+			if (constructor == null) {
+				return clazz.newInstance();
+			}
+			return constructor.newInstance();
+		} catch (InvocationTargetException e) {
+			throw new RuntimeException("Cannot instantiate " + clazz.getName(), e.getTargetException());
+		} catch (InstantiationException e) {
+			throw new RuntimeException(e);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public Class<T> getInstantiatedClass() {
+		return clazz;
+	}
+	
+}
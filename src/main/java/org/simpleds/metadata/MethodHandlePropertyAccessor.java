@@ -0,0 +1,52 @@
+package org.simpleds.metadata;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * {@link PropertyAccessor} implemented with {@link MethodHandle} instances.
+ * The handles are resolved once and adapted to a generic (Object)Object signature,
+ * which avoids the access checks and argument arrays of Method.invoke().
+ * @author icoloma
+ */
+public class MethodHandlePropertyAccessor implements PropertyAccessor {
+
+	private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+	/** reads the property value */
+	private final MethodHandle getter;
+
+	/** writes the property value */
+	private final MethodHandle setter;
+
+	private MethodHandlePropertyAccessor(MethodHandle getter, MethodHandle setter) {
+		this.getter = getter;
+		this.setter = setter;
+	}
+
+	/**
+	 * Create an accessor for the provided property, using the same getter, setter and field
+	 * that would be used with reflection.
+	 * @throws IllegalAccessException if the property members are not accessible
+	 */
+	public static MethodHandlePropertyAccessor create(SinglePropertyMetadata<?, ?> property) throws IllegalAccessException {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		MethodHandle getter = property.getGetter() != null? lookup.unreflect(property.getGetter()) : lookup.unreflectGetter(property.getField());
+		MethodHandle setter = property.getSetter() != null? lookup.unreflect(property.getSetter()) : lookup.unreflectSetter(property.getField());
+		return new MethodHandlePropertyAccessor(getter.asType(GETTER_TYPE), setter.asType(SETTER_TYPE));
+	}
+
+	@Override
+	public Object getValue(Object container) throws Throwable {
+		return (Object) getter.invokeExact(container);
+	}
+
+	@Override
+	public void setValue(Object container, Object value) throws Throwable {
+		setter.invokeExact(container, value);
+	}
+
+}
@@ -36,6 +36,7 @@ public class PersistenceMetadataRepository {
 		ClassMetadata metadata = classMetadataFactory.createMetadata(clazz);
 		log.debug("Adding persistent class " + metadata.getKind());
 		metadata.validate();
+		metadata.compile();
 		if (metadataByKind.get(metadata.getKind()) != null) {
 			throw new DuplicateException("Two entities found with kind='" + metadata.getKind() + "': " + metadata.getPersistentClass().getName() + " and " + metadataByKind.get(metadata.getKind()).getPersistentClass().getName());
 		}
@@ -0,0 +1,22 @@
+package org.simpleds.metadata;
+
+/**
+ * Reads and writes the value of a single property. Implementations are
+ * generated by {@link ClassMetadataFactory} as an alternative to reflection.
+ * @author icoloma
+ */
+public interface PropertyAccessor {
+
+	/**
+	 * @param container the container of this property
+	 * @return the value of the property in the specified container
+	 */
+	public Object getValue(Object container) throws Throwable;
+
+	/**
+	 * @param container the container of this property
+	 * @param value the value to set into this property
+	 */
+	public void setValue(Object container, Object value) throws Throwable;
+
+}
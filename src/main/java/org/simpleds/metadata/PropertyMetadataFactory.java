@@ -5,6 +5,7 @@ import java.lang.reflect.Method;
 
 import org.simpleds.annotations.Property;
 import org.simpleds.converter.Converter;
+import org.simpleds.converter.LazyValue;
 import org.simpleds.converter.NullConverter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,6 +21,13 @@ public class PropertyMetadataFactory {
 			if (field == null && getter == null) {
 				throw new IllegalArgumentException("Either supply field or getter");
 			}
+			
+			// LazyValue fields exposed through decoded accessors are accessed directly
+			if (field != null && getter != null &&
+					LazyValue.class.isAssignableFrom(field.getType()) && !LazyValue.class.isAssignableFrom(getter.getReturnType())) {
+				getter = null;
+				setter = null;
+			}
 			SinglePropertyMetadata<J, D> metadata = new SinglePropertyMetadata<J, D>();
 			metadata.setGetter(getter);
 			metadata.setSetter(setter);
@@ -9,6 +9,8 @@ import org.simpleds.converter.CollectionConverter;
 import org.simpleds.converter.Converter;
 import org.simpleds.util.ClassUtils;
 
+import com.google.common.base.Throwables;
+
 /**
  * A single property
  * @author icoloma
@@ -27,6 +29,9 @@ public class SinglePropertyMetadata<J, D> extends AbstractPropertyMetadata<J, D>
 	/** the field used for direct access, if there is none of the above */
 	private Field field;
 	
+	/** the generated accessor to use instead of reflection. May be null */
+	private PropertyAccessor accessor;
+	
 	/** the converter used to convert values between java and the Google datastore */
 	private Converter<J, D> converter;
 	
@@ -36,18 +41,29 @@ public class SinglePropertyMetadata<J, D> extends AbstractPropertyMetadata<J, D>
 	/** true if this property is indexed, false otherwise */
 	private boolean indexed = true;
 	
+	/** creates new instances of the property type, used for embedded properties */
+	private Instantiator<J> instantiator;
+	
 	@Override
 	public String toString() {
 		return getClass().getSimpleName() + " { name=" + name + 
 			", getter=" + (getter == null? null : getter.getName()) + 
 			", setter=" + (setter == null? null : setter.getName()) + 
 			", field=" + (field == null? null : field.getName()) + 
+			", accessor=" + (accessor == null? null : accessor.getClass().getSimpleName()) + 
 			", indexed=" + indexed + 
 			", converter=" + converter + " }";
 	}
 	
 	@SuppressWarnings("unchecked")
 	public J getValue(Object container) {
+		if (accessor != null) {
+			try {
+				return (J) accessor.getValue(container);
+			} catch (Throwable e) {
+				throw Throwables.propagate(e);
+			}
+		}
 		try {
 			return getter != null? (J) getter.invoke(container) : (J) field.get(container);
 		} catch (IllegalArgumentException e) {
@@ -70,6 +86,14 @@ public class SinglePropertyMetadata<J, D> extends AbstractPropertyMetadata<J, D>
 	
 	@Override
 	public void setValue(Object container, Object value) {
+		if (accessor != null) {
+			try {
+				accessor.setValue(container, value);
+			} catch (Throwable e) {
+				throwSetException(value, e);
+			}
+			return;
+		}
 		try {
 			if (setter != null) {
 				setter.invoke(container, value);
@@ -145,6 +169,14 @@ public class SinglePropertyMetadata<J, D> extends AbstractPropertyMetadata<J, D>
 		this.field = field;
 	}
 
+	public PropertyAccessor getAccessor() {
+		return accessor;
+	}
+
+	public void setAccessor(PropertyAccessor accessor) {
+		this.accessor = accessor;
+	}
+
 	public Converter<J, D> getConverter() {
 		return converter;
 	}
@@ -161,6 +193,20 @@ public class SinglePropertyMetadata<J, D> extends AbstractPropertyMetadata<J, D>
 		this.propertyType = propertyType;
 	}
 
+	/**
+	 * @return the {@link Instantiator} used to create new instances of the property type
+	 */
+	public Instantiator<J> getInstantiator() {
+		if (instantiator == null) {
+			instantiator = Instantiator.create(propertyType, null);
+		}
+		return instantiator;
+	}
+
+	public void setInstantiator(Instantiator<J> instantiator) {
+		this.instantiator = instantiator;
+	}
+
 	public boolean isIndexed() {
 		return indexed;
 	}
@@ -0,0 +1,252 @@
+package org.simpleds.tx;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.simpleds.cache.CacheManager;
+import org.simpleds.metadata.ClassMetadata;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * State associated to an active {@link Transaction}.
+ * Keeps a snapshot of every entity read or written by EntityManager using the transaction, which is
+ * the authoritative value of the entity until the transaction finishes. This is used to validate
+ * {@link org.simpleds.annotations.Version} attributes and to serve repeated reads without 
+ * accessing the datastore again.
+ * <p>
+ * Entities written in a transaction are removed from the cache, and the final state is published
+ * to the cache once the transaction is committed using {@link #afterCommit(Transaction)}. 
+ * Nothing is published if the transaction is rolled back.
+ * <p>
+ * The generation counters of the modified kinds are incremented when each entity is written, and again
+ * once the transaction finishes, to discard any query results cached while the transaction was still active.
+ * <p>
+ * Contexts are bound to the thread that created them, and are discarded once the transaction
+ * is no longer active. Transactions committed without invoking {@link #afterCommit(Transaction)} 
+ * (e.g. not using {@link TransactionManager}) do not publish their entities, and the second increment 
+ * is applied when the finished context is discarded by the next transactional operation or query of the same thread, 
+ * or by {@link #releaseAll()} at the end of the request.
+ * @author icoloma
+ */
+public class TransactionContext {
+
+	/** the contexts of the transactions of the current thread */
+	private static ThreadLocal<Map<Transaction, TransactionContext>> contexts = new ThreadLocal<Map<Transaction, TransactionContext>>() {
+
+		@Override
+		protected Map<Transaction, TransactionContext> initialValue() {
+			return new IdentityHashMap<Transaction, TransactionContext>();
+		}
+
+	};
+
+	/** the entities read or written using this transaction. Keys known to be missing have a null value */
+	private final Map<Key, Entity> snapshots = Maps.newHashMap();
+	
+	/** the keys stored or deleted using this transaction */
+	private final Map<Key, ClassMetadata> writes = Maps.newLinkedHashMap();
+	
+	/** the cache to publish the written entities. May be null */
+	private CacheManager cacheManager;
+
+	/**
+	 * @return the context of the provided transaction, creating it if necessary.
+	 * Returns null if the transaction is null or not active.
+	 */
+	public static TransactionContext get(Transaction transaction) {
+		if (transaction == null || !transaction.isActive()) {
+			return null;
+		}
+		Map<Transaction, TransactionContext> map = purge();
+		TransactionContext context = map.get(transaction);
+		if (context == null) {
+			context = new TransactionContext();
+			map.put(transaction, context);
+		}
+		return context;
+	}
+
+	/**
+	 * @return the context of the provided transaction, or null if it does not exist or the transaction is not active
+	 */
+	public static TransactionContext getIfPresent(Transaction transaction) {
+		if (transaction == null || !transaction.isActive()) {
+			return null;
+		}
+		return purge().get(transaction);
+	}
+
+	/**
+	 * Discard the context of the provided transaction
+	 * @return the discarded context, null if none
+	 */
+	public static TransactionContext release(Transaction transaction) {
+		return contexts.get().remove(transaction);
+	}
+
+	/**
+	 * Discard the context of a committed transaction, publishing its written entities to the cache
+	 */
+	public static void afterCommit(Transaction transaction) {
+		TransactionContext context = release(transaction);
+		if (context != null) {
+			context.publish();
+		}
+	}
+	
+	/**
+	 * Discard the context of a rolled back transaction
+	 */
+	public static void afterRollback(Transaction transaction) {
+		release(transaction);
+	}
+
+	/**
+	 * Discard all the contexts of the current thread, incrementing the generation counters of the kinds
+	 * modified by transactions that finished without invoking {@link #afterCommit(Transaction)}. 
+	 * Invoke at the end of each request to avoid keeping references to transactions in pooled threads.
+	 */
+	public static void releaseAll() {
+		releaseFinished();
+		contexts.remove();
+	}
+
+	/**
+	 * Discard the contexts of the transactions of the current thread that have been committed or rolled back
+	 * without invoking {@link #afterCommit(Transaction)} or {@link #afterRollback(Transaction)}, 
+	 * incrementing the generation counters of the kinds they modified.
+	 */
+	public static void releaseFinished() {
+		if (!contexts.get().isEmpty()) {
+			purge();
+		}
+	}
+
+	/**
+	 * Remove the contexts of finished transactions. Since it is unknown whether they were committed, 
+	 * the generation counters of the modified kinds are incremented but no entity is published
+	 */
+	private static Map<Transaction, TransactionContext> purge() {
+		Map<Transaction, TransactionContext> map = contexts.get();
+		for (Iterator<Map.Entry<Transaction, TransactionContext>> it = map.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<Transaction, TransactionContext> entry = it.next();
+			if (!entry.getKey().isActive()) {
+				TransactionContext context = entry.getValue();
+				it.remove();
+				context.incrementGenerations();
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * @return true if the entity has been read or written in this transaction, or is known to be missing
+	 */
+	public boolean contains(Key key) {
+		return snapshots.containsKey(key);
+	}
+
+	/**
+	 * @return a copy of the entity, or null if it is missing or not known
+	 */
+	public Entity getSnapshot(Key key) {
+		Entity entity = snapshots.get(key);
+		return entity == null? null : entity.clone();
+	}
+
+	/**
+	 * Store a copy of an entity read or written in this transaction
+	 */
+	public void putSnapshot(Entity entity) {
+		snapshots.put(entity.getKey(), entity.clone());
+	}
+
+	/**
+	 * Remember that an entity does not exist in this transaction
+	 */
+	public void putMissing(Key key) {
+		snapshots.put(key, null);
+	}
+
+	/**
+	 * Forget any snapshot of the provided key
+	 */
+	public void remove(Key key) {
+		snapshots.remove(key);
+	}
+
+	/**
+	 * Remember an entity stored in this transaction
+	 */
+	public void putWrite(ClassMetadata metadata, Entity entity) {
+		putSnapshot(entity);
+		writes.put(entity.getKey(), metadata);
+	}
+
+	/**
+	 * Remember an entity deleted in this transaction
+	 */
+	public void putDelete(ClassMetadata metadata, Key key) {
+		putMissing(key);
+		writes.put(key, metadata);
+	}
+
+	/**
+	 * Store the final state of the written entities in the cache, in a single batch.
+	 * Deleted entities are not published, since they were evicted when deleted.
+	 */
+	public void publish() {
+		if (cacheManager == null || writes.isEmpty()) {
+			return;
+		}
+		ListMultimap<ClassMetadata, Object> javaObjects = ArrayListMultimap.create();
+		ListMultimap<ClassMetadata, Entity> entities = ArrayListMultimap.create();
+		for (Map.Entry<Key, ClassMetadata> entry : writes.entrySet()) {
+			ClassMetadata metadata = entry.getValue();
+			Entity entity = snapshots.get(entry.getKey());
+			if (entity != null && metadata.isCacheable()) {
+				javaObjects.put(metadata, metadata.datastoreToJava(entity));
+				entities.put(metadata, entity);
+			}
+		}
+		if (!javaObjects.isEmpty()) {
+			cacheManager.put(javaObjects, entities);
+		}
+		incrementGenerations();
+	}
+
+	/**
+	 * Increment the generation counters of the kinds stored or deleted using this transaction
+	 */
+	private void incrementGenerations() {
+		if (cacheManager == null || writes.isEmpty()) {
+			return;
+		}
+		Set<String> kinds = Sets.newHashSet();
+		for (ClassMetadata metadata : writes.values()) {
+			kinds.add(metadata.getKind());
+		}
+		cacheManager.incrementGenerations(kinds);
+	}
+
+	/**
+	 * @return the keys stored or deleted using this transaction
+	 */
+	public Set<Key> getWrittenKeys() {
+		return writes.keySet();
+	}
+
+	public void setCacheManager(CacheManager cacheManager) {
+		this.cacheManager = cacheManager;
+	}
+
+}
@@ -1,9 +1,11 @@
 package org.simpleds.tx;
 
+import java.util.concurrent.Callable;
+
 import javax.annotation.PostConstruct;
 
-import org.aspectj.lang.annotation.AfterReturning;
-import org.aspectj.lang.annotation.AfterThrowing;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.simpleds.annotations.Transactional;
 
@@ -21,30 +23,48 @@ public class TransactionInterceptor {
 
 	private TransactionManager transactionManager;
 	
+	private TransactionRunner transactionRunner;
+
 	@PostConstruct
 	public void initTransactionManager() {
 		if (transactionManager == null) {
 			transactionManager = new TransactionManagerImpl();
 			((TransactionManagerImpl)transactionManager).setDatastoreService(DatastoreServiceFactory.getDatastoreService());
 		}
+		if (transactionRunner == null) {
+			transactionRunner = new TransactionRunner();
+			transactionRunner.setTransactionManager(transactionManager);
+		}
 	}
 	
-	@AfterReturning(
+	@Around(
 			"execution(* *(..)) and @annotation(transactional) "
 			)
-	public void doCommit(Transactional transactional) {
-		transactionManager.commit();
-	}
-	
-	@AfterThrowing(throwing="exception", pointcut=
-			"execution(* *(..)) and @annotation(transactional) " 
-	)
-	public void doRollback(Transactional transactional, Exception exception) {
-		transactionManager.rollback();
+	public Object doTransaction(final ProceedingJoinPoint joinPoint, Transactional transactional) throws Throwable {
+		return transactionRunner.run(transactional.retries(), transactional.backoff(), new Callable<Object>() {
+
+			@Override
+			public Object call() throws Exception {
+				try {
+					return joinPoint.proceed();
+				} catch (Exception e) {
+					throw e;
+				} catch (Error e) {
+					throw e;
+				} catch (Throwable e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+		});
 	}
 
 	public void setTransactionManager(TransactionManager transactionManager) {
 		this.transactionManager = transactionManager;
 	}
 	
+	public void setTransactionRunner(TransactionRunner transactionRunner) {
+		this.transactionRunner = transactionRunner;
+	}
+	
 }
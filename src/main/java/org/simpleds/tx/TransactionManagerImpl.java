@@ -37,6 +37,7 @@ public class TransactionManagerImpl implements TransactionManager {
 				try {
 					if (commit) {
 						transaction.commit();
+						TransactionContext.afterCommit(transaction);
 					} else {
 						transaction.rollback();
 					}
@@ -49,6 +50,7 @@ public class TransactionManagerImpl implements TransactionManager {
 					}
 				}
 			}
+			TransactionContext.afterRollback(transaction);
 		}
 		log.debug((commit? "Commited " : "Rolled back ") + count + " transactions successfully");
 		
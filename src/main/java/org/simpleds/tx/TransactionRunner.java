@@ -0,0 +1,188 @@
+package org.simpleds.tx;
+
+import java.util.ConcurrentModificationException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.simpleds.exception.OptimisticLockException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes a block of code and commits all the transactions bound to the current thread,
+ * or rolls them back if the code throws an exception.
+ * <p>
+ * If the block fails because of contention (a {@link ConcurrentModificationException} thrown by the datastore
+ * or an {@link OptimisticLockException}), it is executed again up to the configured number of retries.
+ * The wait before each retry starts with the configured backoff and is doubled each time, with a random jitter
+ * to avoid retrying in lockstep with other requests competing for the same entity group.
+ * <pre>
+ * Account account = transactionRunner.run(new Callable&lt;Account&gt;() {
+ *     public Account call() {
+ *         Transaction tx = entityManager.beginTransaction();
+ *         Account account = entityManager.get(tx, key);
+ *         account.add(amount);
+ *         entityManager.put(tx, account);
+ *         return account;
+ *     }
+ * });
+ * </pre>
+ * @author icoloma
+ */
+@Singleton
+public class TransactionRunner {
+
+	@Inject
+	private TransactionManager transactionManager;
+
+	/** the default number of retries, default 3 */
+	private int retries = 3;
+
+	/** the default milliseconds to wait before the first retry, default 100 */
+	private long backoff = 100;
+
+	/** the maximum milliseconds to wait before any retry, default 5000 */
+	private long maxBackoff = 5000;
+
+	/** the number of executions of any block, including retries */
+	private final AtomicLong executionCount = new AtomicLong();
+
+	/** the number of retries after a contention failure */
+	private final AtomicLong retryCount = new AtomicLong();
+
+	/** the number of blocks that failed because of contention after exhausting all retries */
+	private final AtomicLong exhaustedCount = new AtomicLong();
+
+	private final Random random = new Random();
+
+	private static Logger log = LoggerFactory.getLogger(TransactionRunner.class);
+
+	/**
+	 * Execute the block with the default number of retries and backoff
+	 * @return the value returned by the block
+	 */
+	public <T> T run(Callable<T> body) throws Exception {
+		return run(retries, backoff, body);
+	}
+
+	/**
+	 * Execute the block, retrying if it fails because of contention
+	 * @param retries the maximum number of times to execute the block again
+	 * @param backoff the milliseconds to wait before the first retry
+	 * @return the value returned by the block
+	 */
+	public <T> T run(int retries, long backoff, Callable<T> body) throws Exception {
+		for (int attempt = 0; ; attempt++) {
+			executionCount.incrementAndGet();
+			try {
+				T result = body.call();
+				transactionManager.commit();
+				return result;
+			} catch (Exception e) {
+				rollback();
+				if (!isRetryable(e)) {
+					throw e;
+				}
+				if (attempt >= retries) {
+					if (retries > 0) {
+						exhaustedCount.incrementAndGet();
+						log.warn("Transaction failed after " + retries + " retries: " + e);
+					}
+					throw e;
+				}
+				retryCount.incrementAndGet();
+				long delay = getDelay(backoff, attempt);
+				log.debug("Transaction failed because of contention, retrying in " + delay + " ms: " + e);
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Roll back the active transactions, without hiding the exception thrown by the block
+	 */
+	private void rollback() {
+		try {
+			transactionManager.rollback();
+		} catch (RuntimeException e) {
+			log.debug("Ignored exception during rollback: " + e, e);
+		}
+	}
+
+	/**
+	 * @return the milliseconds to wait before the retry, between half and the full exponential value
+	 */
+	private long getDelay(long backoff, int attempt) {
+		long delay = Math.min(maxBackoff, backoff << Math.min(attempt, 20));
+		if (delay <= 1) {
+			return delay;
+		}
+		long half = delay / 2;
+		synchronized (random) {
+			return half + (long) (random.nextDouble() * (delay - half));
+		}
+	}
+
+	/**
+	 * @return true if the exception, or any of its causes, signals a contention failure
+	 */
+	public static boolean isRetryable(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause() == t? null : t.getCause()) {
+			if (t instanceof ConcurrentModificationException || t instanceof OptimisticLockException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of executions of any block, including retries
+	 */
+	public long getExecutionCount() {
+		return executionCount.get();
+	}
+
+	/**
+	 * @return the number of retries after a contention failure
+	 */
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	/**
+	 * @return the number of blocks that failed because of contention after exhausting all retries
+	 */
+	public long getExhaustedCount() {
+		return exhaustedCount.get();
+	}
+
+	public void setTransactionManager(TransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
+	}
+
+	public TransactionManager getTransactionManager() {
+		return transactionManager;
+	}
+
+	public void setRetries(int retries) {
+		this.retries = retries;
+	}
+
+	public void setBackoff(long backoff) {
+		this.backoff = backoff;
+	}
+
+	public void setMaxBackoff(long maxBackoff) {
+		this.maxBackoff = maxBackoff;
+	}
+
+}
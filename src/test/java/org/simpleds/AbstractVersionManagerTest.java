@@ -10,11 +10,13 @@ import java.util.List;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.simpleds.cache.Level1Cache;
 import org.simpleds.exception.OptimisticLockException;
 import org.simpleds.metadata.ClassMetadata;
 import org.simpleds.metadata.PropertyMetadata;
 import org.simpleds.metadata.VersionManager;
 
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.common.collect.ImmutableList;
 
@@ -100,6 +102,42 @@ public abstract class AbstractVersionManagerTest<T> extends AbstractEntityManage
 		
 	}
 	
+	@Test
+	public void testSinglePutTransactionTwice() {
+		T entity = createEntity();
+		entityManager.put(entity);
+		
+		// the second put validates against the entity written by the first one
+		Transaction tx = entityManager.beginTransaction();
+		entityManager.put(tx, entity);
+		entityManager.put(tx, entity);
+		tx.commit();
+		Object versionValue = versionProperty.getValue(entity);
+		entityManager.refresh(entity);
+		assertEquals(versionValue, versionProperty.getValue(entity));
+	}
+	
+	@Test
+	public void testSinglePutAllocatedKey() {
+		entityManager.setSkipVersionCheckOnAllocatedKeys(true);
+		Level1Cache.setCacheInstance();
+		try {
+			T entity = createEntity();
+			Key key = entityManager.allocateId(entity.getClass());
+			assertTrue(Level1Cache.getCacheInstance().isAllocatedKey(key));
+			repository.get(entity.getClass()).getKeyProperty().setValue(entity, key);
+			entityManager.put(entity);
+			assertFalse(Level1Cache.getCacheInstance().isAllocatedKey(key));
+			Object startValue = versionProperty.getValue(entity);
+			assertNotNull(startValue);
+			
+			entityManager.put(entity);
+			assertFalse(startValue.equals(versionProperty.getValue(entity)));
+		} finally {
+			Level1Cache.clearCacheInstance();
+		}
+	}
+	
 	@Test(expected=ConcurrentModificationException.class)
 	public void testSinglePutTransactionCollision() {
 		T entity = createEntity();
@@ -1,18 +1,25 @@
 package org.simpleds;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.List;
 
 import org.junit.Test;
+import org.simpleds.annotations.Entity;
+import org.simpleds.annotations.Id;
 import org.simpleds.functions.EntityToPropertyFunction;
 import org.simpleds.testdb.Attrs;
 import org.simpleds.testdb.Dummy1;
 
+import com.google.appengine.api.datastore.Key;
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 
 public class CursorListTest extends AbstractEntityManagerTest {
@@ -76,4 +83,68 @@ public class CursorListTest extends AbstractEntityManagerTest {
 		assertTrue(emptyList.getData().isEmpty());
 	}
 
+	@Test
+	public void testPrefetch() {
+		repository.add(Post.class);
+		repository.add(User.class);
+		repository.add(Company.class);
+		Company company = new Company();
+		company.key = KeyFactory2.createKey(Company.class, 1);
+		User owner = new User();
+		owner.key = KeyFactory2.createKey(User.class, 1);
+		owner.cmp = company.key;
+		User other = new User();
+		other.key = KeyFactory2.createKey(User.class, 2);
+		Key missingUser = KeyFactory2.createKey(User.class, 3);
+		Post post1 = new Post();
+		post1.key = KeyFactory2.createKey(Post.class, 1);
+		post1.own = owner.key;
+		post1.usr = ImmutableList.of(owner.key, other.key, missingUser);
+		Post post2 = new Post();
+		post2.key = KeyFactory2.createKey(Post.class, 2);
+		entityManager.put(ImmutableList.of(company, owner, other, post1, post2));
+		
+		CursorList<Post> list = entityManager.createQuery(Post.class).sortAsc("__key__").asCursorList(10);
+		RelatedEntities related = list.prefetch("own.cmp", "usr");
+		assertEquals(3, related.size());
+		assertEquals(owner.key, related.<User>get(post1.own).key);
+		assertEquals(company.key, related.<Company>get(owner.cmp).key);
+		assertEquals(2, related.get(post1.usr).size());
+		assertFalse(related.contains(missingUser));
+		assertNull(related.get(post2.own));
+		
+		// the old method keeps working
+		assertEquals(ImmutableSet.of(owner.key), list.loadRelatedEntities("own").keySet());
+		
+		// misspelled properties are reported with the full path
+		try {
+			list.prefetch("own.cpm");
+			fail("Misspelled property was not detected");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("own.cpm"));
+		}
+	}
+
+	
+	@Entity("po")
+	static class Post {
+		@Id
+		private Key key;
+		private Key own;
+		private List<Key> usr;
+	}
+	
+	@Entity("us")
+	static class User {
+		@Id
+		private Key key;
+		private Key cmp;
+	}
+	
+	@Entity("co")
+	static class Company {
+		@Id
+		private Key key;
+	}
+
 }
@@ -11,9 +11,13 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import com.google.appengine.api.datastore.Entity;
 import org.junit.Test;
+import org.simpleds.exception.BulkOperationException;
+import org.simpleds.exception.EntityNotFoundException;
 import org.simpleds.exception.RequiredFieldException;
 import org.simpleds.functions.EntityToKeyFunction;
 import org.simpleds.testdb.*;
@@ -23,6 +27,8 @@ import com.google.appengine.api.datastore.KeyFactory;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 
 public class EntityManagerTest extends AbstractEntityManagerTest {
 
@@ -126,6 +132,41 @@ public class EntityManagerTest extends AbstractEntityManagerTest {
 
 	}
 	
+	@Test
+	public void testAsync() throws Exception {
+		Dummy1 dummy1 = Dummy1.create();
+		Dummy1 dummy2 = Dummy1.create();
+		Future<Key> put1 = entityManager.putAsync(dummy1);
+		Future<Key> put2 = entityManager.putAsync(dummy2);
+		assertEquals(put1.get(), dummy1.getKey());
+		assertEquals(put2.get(), dummy2.getKey());
+		
+		Future<Dummy1> get1 = entityManager.getAsync(dummy1.getKey());
+		Future<Map<Key, Dummy1>> get2 = entityManager.getAsync(ImmutableList.of(dummy1.getKey(), dummy2.getKey()));
+		assertEquals(dummy1.getKey(), get1.get().getKey());
+		assertEquals(ImmutableSet.of(dummy1.getKey(), dummy2.getKey()), get2.get().keySet());
+		
+		entityManager.deleteAsync(dummy1.getKey()).get();
+		try {
+			entityManager.getAsync(dummy1.getKey()).get();
+			fail("Expected " + EntityNotFoundException.class);
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof EntityNotFoundException);
+		}
+		Map<Key, Dummy1> retrieved = entityManager.<Dummy1>getAsync(ImmutableList.of(dummy1.getKey(), dummy2.getKey())).get();
+		assertEquals(ImmutableSet.of(dummy2.getKey()), retrieved.keySet());
+	}
+	
+	@Test
+	public void testVersionedPutAsync() throws Exception {
+		BasicVersionedClass vc = new BasicVersionedClass();
+		vc.setKey(KeyFactory2.createKey(BasicVersionedClass.class, 10));
+		entityManager.putAsync(vc).get();
+		assertEquals((Long) 0L, vc.getVersion());
+		entityManager.putAsync(vc).get();
+		assertEquals((Long) 1L, vc.getVersion());
+	}
+	
 	@Test
 	public void testMultipleGetFail() {
 		entityManager.get(ImmutableList.of(KeyFactory2.createKey(Dummy1.class, 1)));
@@ -251,6 +292,67 @@ public class EntityManagerTest extends AbstractEntityManagerTest {
 		assertEquals(dummy.getBigString(), dummy2.getBigString());
 	}
 	
+	@Test
+	public void testWriteBehindSession() {
+		Dummy1 existing = Dummy1.create();
+		entityManager.put(existing);
+		
+		WriteBehindSession session = new WriteBehindSession(entityManager);
+		session.setBatchSize(2);
+		Dummy1 dummy = Dummy1.create();
+		dummy.setKey(KeyFactory.createKey(Kinds.DUMMY1, 1000));
+		session.put(dummy);
+		dummy.setName("bar");
+		session.put(dummy);
+		Dummy1 generated1 = Dummy1.create();
+		Dummy1 generated2 = Dummy1.create();
+		Dummy1 generated3 = Dummy1.create();
+		session.put(ImmutableList.of(generated1, generated2, generated3, generated1));
+		session.delete(existing.getKey());
+		assertEquals(5, session.size());
+		assertEquals(1, entityManager.createQuery(Dummy1.class).count());
+		
+		session.flush();
+		assertTrue(session.isEmpty());
+		assertEquals("bar", entityManager.<Dummy1>get(dummy.getKey()).getName());
+		assertNotNull(generated1.getKey());
+		assertNotNull(generated3.getKey());
+		assertEquals(4, entityManager.createQuery(Dummy1.class).count());
+		
+		// put after delete
+		session.delete(dummy.getKey());
+		session.put(dummy);
+		session.flush();
+		assertEquals(4, entityManager.createQuery(Dummy1.class).count());
+	}
+	
+	@Test
+	public void testBulkOperations() {
+		entityManager.setBulkChunkSize(2);
+		List<Dummy1> dummies = Lists.newArrayList();
+		for (int i = 0; i < 5; i++) {
+			dummies.add(Dummy1.create());
+		}
+		entityManager.putBulk(dummies);
+		List<Key> keys = Lists.transform(dummies, new EntityToKeyFunction<Dummy1>(Dummy1.class));
+		assertEquals(5, entityManager.getBulk(keys).size());
+		
+		// a failed chunk does not stop the rest
+		try {
+			entityManager.putBulk(ImmutableList.of(Dummy1.create(), Dummy1.create(), new Dummy1(), Dummy1.create(), Dummy1.create()));
+			fail("Bulk put should fail");
+		} catch (BulkOperationException e) {
+			assertEquals(3, e.getChunks());
+			assertEquals(1, e.getFailures().size());
+			assertEquals(1, e.getFailures().get(0).getIndex());
+			assertTrue(e.getCause() instanceof RequiredFieldException);
+		}
+		assertEquals(8, entityManager.createQuery(Dummy1.class).count());
+		
+		entityManager.deleteBulk(keys);
+		assertEquals(0, entityManager.getBulk(keys).size());
+	}
+	
 	private void putShouldFail(Key parentKey, Object instance) {
 		try {
 			entityManager.put(parentKey, instance);
@@ -1,10 +1,15 @@
 package org.simpleds;
 
+import com.google.appengine.api.datastore.Key;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import org.junit.Before;
 import org.junit.Test;
+import org.simpleds.annotations.AsJSON;
+import org.simpleds.annotations.Id;
+import org.simpleds.annotations.Property;
+import org.simpleds.converter.LazyValue;
 import org.simpleds.testdb.Dummy1;
 import org.simpleds.testdb.FoobarPlugin;
 import org.simpleds.testdb.JsonStored;
@@ -13,6 +18,7 @@ import org.simpleds.testdb.Plugin;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 
 import static org.junit.Assert.*;
 
@@ -44,4 +50,54 @@ public class JsonStoredTest extends AbstractEntityManagerTest {
         assertEquals(1, ((FoobarPlugin)instance2.getPolyList().get(0)).getId());
 	}
 
+	@Test
+	public void testLazyValue() throws Exception {
+		repository.add(LazyStored.class);
+		LazyStored lazy = new LazyStored();
+		lazy.setMap(ImmutableMap.of("foo", Dummy1.create()));
+		entityManager.put(lazy);
+		
+		LazyStored lazy2 = entityManager.get(lazy.key);
+		assertFalse(lazy2.map.isDecoded());
+		assertEquals("foo", lazy2.getMap().get("foo").getName());
+		assertTrue(lazy2.map.isDecoded());
+		
+		// values not decoded are stored as-is
+		LazyStored lazy3 = entityManager.get(lazy.key);
+		entityManager.put(lazy3);
+		assertFalse(lazy3.map.isDecoded());
+		assertEquals("foo", entityManager.<LazyStored>get(lazy.key).getMap().get("foo").getName());
+		
+		lazy3.setMap(ImmutableMap.of("bar", Dummy1.create()));
+		entityManager.put(lazy3);
+		assertEquals(ImmutableSet.of("bar"), entityManager.<LazyStored>get(lazy.key).getMap().keySet());
+	}
+	
+	@org.simpleds.annotations.Entity("lz")
+	public static class LazyStored {
+		
+		@Id
+		private Key key;
+		
+		@AsJSON @Property("m")
+		private LazyValue<Map<String, Dummy1>> map;
+		
+		public Key getKey() {
+			return key;
+		}
+		
+		public void setKey(Key key) {
+			this.key = key;
+		}
+		
+		public Map<String, Dummy1> getMap() {
+			return map == null? null : map.get();
+		}
+		
+		public void setMap(Map<String, Dummy1> map) {
+			this.map = LazyValue.of(map);
+		}
+		
+	}
+
 }
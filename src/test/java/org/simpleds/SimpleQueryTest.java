@@ -10,6 +10,8 @@ import static org.junit.Assert.fail;
 import java.util.Date;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 import org.simpleds.annotations.Entity;
@@ -22,8 +24,12 @@ import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.common.base.Function;
 import com.google.common.base.Predicate;
+
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import org.simpleds.testdb.Kinds;
 
 public class SimpleQueryTest extends AbstractEntityManagerTest {
@@ -177,6 +183,114 @@ public class SimpleQueryTest extends AbstractEntityManagerTest {
 		}
 	}
 
+	@Test
+	public void testPipelinedIterator() throws Exception {
+		for (int i = 1; i < 8; i++) {
+			entityManager.put(Dummy1.create());
+		}
+		
+		// retrieve the first three results, using chunks of two elements
+		CursorIterator<Dummy1> it = entityManager.createQuery(Dummy1.class)
+				.sortAsc("__key__")
+				.withChunkSize(2)
+				.asPipelinedIterator(1);
+		assertNull(it.getCursor());
+		for (int i = 1; i < 4; i++) {
+			assertTrue(it.hasNext());
+			assertEquals(i, it.next().getKey().getId());
+		}
+		
+		// the cursor points after the last consumed element
+		Cursor cursor = it.getCursor();
+		
+		// stop the producer without consuming the remaining results
+		((PipelinedCursorIterator<Dummy1>) it).close();
+		assertFalse(it.hasNext());
+		assertEquals(cursor, it.getCursor());
+		
+		it = entityManager.createQuery(Dummy1.class)
+
+				.sortAsc("__key__")
+				.withStartCursor(cursor)
+				.withPredicate(new Predicate<Dummy1>() {
+					
+					@Override
+					public boolean apply(Dummy1 input) {
+						return input.getKey().getId() % 2 == 0;
+					}
+					
+				})
+				.asPipelinedIterator(2);
+		assertEquals(4, it.next().getKey().getId());
+		assertEquals(6, it.next().getKey().getId());
+		assertFalse(it.hasNext());
+		try {
+			it.next();
+			fail();
+		} catch (NoSuchElementException e) {
+		}
+	}
+
+	@Test
+	public void testSplit() throws Exception {
+		List<Dummy1> dummies = Lists.newArrayList();
+		for (int i = 0; i < 200; i++) {
+			dummies.add(Dummy1.create());
+		}
+		entityManager.put(dummies);
+		
+		// shards are disjoint and contain all the results
+		List<SimpleQuery> queries = entityManager.createQuery(Dummy1.class).split(4);
+		assertTrue(queries.size() > 1);
+		Set<Key> keys = Sets.newHashSet();
+		for (SimpleQuery query : queries) {
+			for (Key key : query.keysOnly().<Key>asList()) {
+				assertTrue(keys.add(key));
+			}
+		}
+		assertEquals(200, keys.size());
+		
+		// queries sorted by other properties are not split
+		assertEquals(1, entityManager.createQuery(Dummy1.class).sortAsc(Attrs.NAME).split(4).size());
+		
+		List<Dummy1> result = entityManager.createQuery(Dummy1.class).asParallelList(3);
+		assertEquals(200, result.size());
+		
+		// shards beyond the number of threads are queued
+		final AtomicInteger count = new AtomicInteger();
+		entityManager.createQuery(Dummy1.class).parallelForEach(4, 2, new Function<Dummy1, Void>() {
+
+			@Override
+			public Void apply(Dummy1 input) {
+				count.incrementAndGet();
+				return null;
+			}
+			
+		});
+		assertEquals(200, count.get());
+	}
+
+	@Test
+	public void testProjection() throws Exception {
+		Dummy1 dummy = Dummy1.create();
+		entityManager.put(dummy);
+		SimpleQuery query = entityManager.createQuery(Dummy1.class)
+				.project(Attrs.NAME, Attrs.DATE)
+				.withCacheSeconds("foo", 100);
+		assertTrue(query.isProjection());
+		List<Dummy1> result = query.asList();
+		assertEquals(1, result.size());
+		Dummy1 projected = result.get(0);
+		assertEquals(dummy.getKey(), projected.getKey());
+		assertEquals("foo", projected.getName());
+		assertEquals(dummy.getOverridenNameDate(), projected.getOverridenNameDate());
+		assertNull(projected.getBigString());
+		
+		// projections are not cached
+		assertNull(entityManager.getCacheManager().get("foo", query.getCacheKey()));
+		assertFalse(query.getCacheKey().equals(entityManager.createQuery(Dummy1.class).getCacheKey()));
+	}
+
 	@Entity(Kinds.COLLECTION_DUMMY)
 	@SuppressWarnings("unused")
 	public static class CollectionDummy {
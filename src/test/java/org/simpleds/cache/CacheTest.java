@@ -2,11 +2,16 @@ package org.simpleds.cache;
 
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Text;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Lists;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -14,6 +19,8 @@ import org.simpleds.AbstractEntityManagerTest;
 import org.simpleds.CursorIterator;
 import org.simpleds.KeyFactory2;
 import org.simpleds.SimpleQuery;
+import org.simpleds.annotations.Cacheable;
+import org.simpleds.annotations.Id;
 import org.simpleds.exception.EntityNotFoundException;
 import org.simpleds.exception.InconsistentCacheException;
 import org.simpleds.metadata.ClassMetadata;
@@ -24,6 +31,7 @@ import org.simpleds.testdb.Dummy1;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -120,6 +128,171 @@ public class CacheTest extends AbstractEntityManagerTest {
 		assertEquals("xxx", read.getName());
 	}
 	
+	@Test
+	public void testSharedCache() {
+		FakeTicker ticker = new FakeTicker();
+		SharedCache sharedCache = new SharedCache(100, ticker);
+		((CacheManagerImpl) cacheManager).setSharedCache(sharedCache);
+		try {
+			CacheableEntity entity = CacheableEntity.create();
+			entityManager.put(entity);
+			assertEquals(1, sharedCache.size());
+			
+			// clear level 1 and memcache, the value is still retrieved from the shared cache
+			Level1Cache.setCacheInstance();
+			MemcacheServiceFactory.getMemcacheService(metadata.getCacheNamespace()).clearAll();
+			CacheableEntity read = (CacheableEntity) cacheManager.get(metadata, entity.getKey());
+			assertNotSame(entity, read);
+			assertEquals(entity.getName(), read.getName());
+			assertSame(read, Level1Cache.getCacheInstance().get(entity.getKey()));
+			
+			// multiple get
+			Level1Cache.setCacheInstance();
+			Map<Key, Object> values = cacheManager.get(ImmutableSetMultimap.of(metadata, entity.getKey(), metadata, noncachedEntity.getKey()));
+			assertEquals(ImmutableSet.of(entity.getKey()), values.keySet());
+			
+			// expiration
+			ticker.advance(60, TimeUnit.SECONDS);
+			Level1Cache.setCacheInstance();
+			assertNull(cacheManager.get(metadata, entity.getKey()));
+			
+			// delete
+			entityManager.put(entity);
+			entityManager.delete(entity.getKey());
+			assertEquals(0, sharedCache.size());
+		} finally {
+			((CacheManagerImpl) cacheManager).setSharedCache(null);
+		}
+	}
+	
+	@Test
+	public void testSpeculativeGet() {
+		Key missingKey = KeyFactory2.createKey(CacheableEntity.class, 4321);
+		Map<Key, CacheableEntity> values = entityManager.getSpeculative(ImmutableList.of(cachedEntity.getKey(), noncachedEntity.getKey(), missingKey));
+		assertEquals(2, values.size());
+		assertSame(cachedEntity, values.get(cachedEntity.getKey()));
+		assertNotSame(noncachedEntity, values.get(noncachedEntity.getKey()));
+		assertEquals(noncachedEntity.getKey(), values.get(noncachedEntity.getKey()).getKey());
+		
+		// the datastore result is stored in the cache
+		assertInCache(noncachedEntity);
+	}
+	
+	@Test
+	public void testMultipleNamespaces() {
+		repository.add(OtherNamespaceEntity.class);
+		OtherNamespaceEntity other = new OtherNamespaceEntity();
+		other.key = KeyFactory2.createKey(OtherNamespaceEntity.class, 1);
+		entityManager.put(ImmutableList.of(cachedEntity, other));
+		MemcacheService otherMemcache = MemcacheServiceFactory.getMemcacheService("other");
+		assertTrue(otherMemcache.contains(other.key));
+		
+		// remove from the datastore, values are retrieved from both memcache namespaces
+		datastoreService.delete(cachedEntity.getKey(), other.key);
+		Level1Cache.clearCacheInstance();
+		Map<Key, Object> values = entityManager.get(ImmutableList.of(cachedEntity.getKey(), other.key));
+		assertEquals(ImmutableSet.of(cachedEntity.getKey(), other.key), values.keySet());
+		
+		entityManager.delete(cachedEntity.getKey(), other.key);
+		assertFalse(otherMemcache.contains(other.key));
+		assertFalse(MemcacheServiceFactory.getMemcacheService(metadata.getCacheNamespace()).contains(cachedEntity.getKey()));
+	}
+	
+	@Test
+	public void testCompactCache() {
+		repository.add(CompactEntity.class);
+		CompactEntity compact = new CompactEntity();
+		compact.key = KeyFactory2.createKey(CompactEntity.class, 1);
+		compact.nam = "foo";
+		compact.cnt = -12345678901L;
+		compact.sml = 7;
+		compact.flg = true;
+		compact.dt = new Date();
+		compact.tgs = ImmutableList.of("a", "b");
+		entityManager.put(compact);
+		MemcacheService memcache = MemcacheServiceFactory.getMemcacheService(CacheManager.ENTITIES_NAMESPACE);
+		assertTrue(memcache.get(compact.key) instanceof byte[]);
+		
+		// remove from the datastore, values are decoded from memcache
+		datastoreService.delete(compact.key);
+		Level1Cache.clearCacheInstance();
+		assertCompactEquals(compact, (CompactEntity) entityManager.get(compact.key));
+		Level1Cache.clearCacheInstance();
+		Map<Key, CompactEntity> values = entityManager.get(ImmutableList.of(compact.key));
+		assertCompactEquals(compact, values.get(compact.key));
+		
+		// values encoded with a different schema are ignored
+		Level1Cache.clearCacheInstance();
+		byte[] bytes = (byte[]) memcache.get(compact.key);
+		bytes[1]++;
+		memcache.put(compact.key, bytes);
+		assertTrue(entityManager.get(ImmutableList.of(compact.key)).isEmpty());
+	}
+	
+	private void assertCompactEquals(CompactEntity expected, CompactEntity actual) {
+		assertEquals(expected.key, actual.key);
+		assertEquals(expected.nam, actual.nam);
+		assertEquals(expected.cnt, actual.cnt);
+		assertEquals(expected.sml, actual.sml);
+		assertEquals(expected.flg, actual.flg);
+		assertEquals(expected.dt, actual.dt);
+		assertEquals(expected.tgs, actual.tgs);
+	}
+	
+	@Cacheable(value=60, compact=true)
+	@org.simpleds.annotations.Entity("cpt")
+	static class CompactEntity {
+		@Id
+		private Key key;
+		private String nam;
+		private long cnt;
+		private int sml;
+		private boolean flg;
+		private Date dt;
+		private List<String> tgs;
+	}
+	
+	@Test
+	public void testCompressedCache() {
+		repository.add(CompressedEntity.class);
+		CompressedEntity small = new CompressedEntity();
+		small.key = KeyFactory2.createKey(CompressedEntity.class, 1);
+		small.txt = new Text("foo");
+		CompressedEntity large = new CompressedEntity();
+		large.key = KeyFactory2.createKey(CompressedEntity.class, 2);
+		large.txt = new Text(Strings.repeat("foo bar ", 1000));
+		entityManager.put(ImmutableList.of(small, large));
+		MemcacheService memcache = MemcacheServiceFactory.getMemcacheService(CacheManager.ENTITIES_NAMESPACE);
+		// values below the threshold keep their serialized bytes, uncompressed
+		assertTrue(memcache.get(small.key) instanceof CompressedValue);
+		assertTrue(memcache.get(large.key) instanceof CompressedValue);
+
+		
+		// remove from the datastore, values are decompressed from memcache
+		datastoreService.delete(small.key, large.key);
+		Level1Cache.clearCacheInstance();
+		Map<Key, CompressedEntity> values = entityManager.get(ImmutableList.of(small.key, large.key));
+		assertEquals(small.txt, values.get(small.key).txt);
+		assertEquals(large.txt, values.get(large.key).txt);
+		Level1Cache.clearCacheInstance();
+		assertEquals(large.txt, ((CompressedEntity) entityManager.get(large.key)).txt);
+	}
+	
+	@Cacheable(value=60, compressThreshold=1024, compression=Compression.DEFLATE_FAST)
+	@org.simpleds.annotations.Entity("cmp")
+	static class CompressedEntity {
+		@Id
+		private Key key;
+		private Text txt;
+	}
+	
+	@Cacheable(value=60, namespace="other")
+	@org.simpleds.annotations.Entity("on")
+	static class OtherNamespaceEntity {
+		@Id
+		private Key key;
+	}
+	
 	@Test
 	public void testNotCacheableData() {
 		MemcacheService memcache = MemcacheServiceFactory.getMemcacheService(CacheManager.ENTITIES_NAMESPACE);
@@ -138,6 +311,56 @@ public class CacheTest extends AbstractEntityManagerTest {
 		assertTrue(result.isEmpty());
 	}
 	
+	@Test
+	public void testNegativeCache() {
+		Key key = KeyFactory2.createKey(CacheableEntity.class, 4321);
+		assertTrue(entityManager.get(ImmutableList.of(key)).isEmpty());
+		
+		// stored behind our back, the key is still cached as missing
+		CacheableEntity entity = CacheableEntity.create();
+		entity.setKey(key);
+		datastoreService.put(entityManager.javaToDatastore(entity));
+		assertTrue(entityManager.get(ImmutableList.of(key)).isEmpty());
+		Level1Cache.setCacheInstance();
+		assertTrue(entityManager.get(ImmutableList.of(key)).isEmpty());
+		try {
+			entityManager.get(key);
+			fail("Expected " + EntityNotFoundException.class);
+		} catch (EntityNotFoundException e) {
+			// ok
+		}
+		
+		// put() clears the tombstone
+		entityManager.put(entity);
+		assertSame(entity, entityManager.get(key));
+		Level1Cache.setCacheInstance();
+		assertEquals(key, ((CacheableEntity) entityManager.get(key)).getKey());
+	}
+	
+	@Test
+	public void testNegativeCacheSingleGet() {
+		Key key = KeyFactory2.createKey(CacheableEntity.class, 4321);
+		try {
+			entityManager.get(key);
+			fail("Expected " + EntityNotFoundException.class);
+		} catch (EntityNotFoundException e) {
+			// ok
+		}
+		CacheableEntity entity = CacheableEntity.create();
+		entity.setKey(key);
+		datastoreService.put(entityManager.javaToDatastore(entity));
+		Level1Cache.setCacheInstance();
+		assertTrue(entityManager.get(ImmutableList.of(key)).isEmpty());
+		
+		// transactions ignore the cache
+		Transaction tx = entityManager.beginTransaction();
+		try {
+			assertNotNull(entityManager.get(tx, key));
+		} finally {
+			tx.commit();
+		}
+	}
+	
 	@Test(expected=EntityNotFoundException.class)
 	public void testSingleGetDoesNotExist() {
 		entityManager.get(KeyFactory2.createKey(CacheableEntity.class, 1234));
@@ -146,39 +369,54 @@ public class CacheTest extends AbstractEntityManagerTest {
 	@Test
 	public void testCalculateCacheKey() throws Exception {
 		// empty
-		assertCacheKeys(
-				"qdata{kind=d1}", 
-				entityManager.createQuery(Dummy1.class));
+		String empty = entityManager.createQuery(Dummy1.class).getCacheKey();
+		assertTrue(empty, empty.matches("qdata\\{kind=d1,fp=[0-9a-f]{32}\\}"));
 		
-		// filter conditions
-		assertCacheKeys(
-				"qdata{kind=d1,pred=[d = Thu Jan 01 00:00:00 UTC 1970, ev > NULL, n IN [foo, bar], n > bar]}",
+		// filter conditions do not depend on the insertion order
+		String filtered = assertCacheKeys(
 				entityManager.createQuery(Dummy1.class)
 					.equal(Attrs.DATE, new Date(100))
 					.isNotNull(Attrs.E_VALUE)
 					.in(Attrs.NAME, ImmutableList.of("foo", "bar"))
+					.greaterThan(Attrs.NAME, "bar"),
+				entityManager.createQuery(Dummy1.class)
 					.greaterThan(Attrs.NAME, "bar")
+					.in(Attrs.NAME, ImmutableList.of("foo", "bar"))
+					.isNotNull(Attrs.E_VALUE)
+					.equal(Attrs.DATE, new Date(100))
 		);
+		assertFalse(filtered.equals(empty));
+		assertFalse(filtered.equals(entityManager.createQuery(Dummy1.class)
+					.equal(Attrs.DATE, new Date(101))
+					.isNotNull(Attrs.E_VALUE)
+					.in(Attrs.NAME, ImmutableList.of("foo", "bar"))
+					.greaterThan(Attrs.NAME, "bar")
+					.getCacheKey()));
+		
+		// sort order
+		assertFalse(entityManager.createQuery(Dummy1.class).sortAsc(Attrs.NAME).getCacheKey().equals(
+				entityManager.createQuery(Dummy1.class).sortDesc(Attrs.NAME).getCacheKey()));
 		
 		// cursor
 		entityManager.put(Dummy1.create());
 		CursorIterator<Object> it = entityManager.createQuery(Dummy1.class).asIterator();
 		it.next();
 		Cursor cursor = it.getCursor();
-		assertCacheKeys(
-				"qdata{kind=d1,start=E-ABAIICEGoEdGVzdHIICxICZDEYAwwU,end=E-ABAIICEGoEdGVzdHIICxICZDEYAwwU}", 
+		String withCursor = assertCacheKeys(
 				entityManager.createQuery(Dummy1.class)
 					.withStartCursor(cursor)
-					.withEndCursor(cursor)
+					.withEndCursor(cursor),
+				entityManager.createQuery(Dummy1.class)
+					.withStartCursor(cursor.toWebSafeString())
+					.withEndCursor(cursor.toWebSafeString())
 		);
+		assertFalse(withCursor.equals(empty));
 		
-		// fetchOptions
-		assertCacheKeys(
-				"qdata{kind=d1,off=5,lim=100}", 
-				entityManager.createQuery(Dummy1.class)
-					.withOffset(5)
-					.withLimit(100)
-					);
+		// fetchOptions, the cached fingerprint is discarded when modified
+		SimpleQuery query = entityManager.createQuery(Dummy1.class).withOffset(5);
+		String withOffset = query.getCacheKey();
+		assertFalse(withOffset.equals(empty));
+		assertFalse(withOffset.equals(query.withLimit(100).getCacheKey()));
 	}
 	
 	@Test
@@ -269,6 +507,137 @@ public class CacheTest extends AbstractEntityManagerTest {
         assertEquals(result.getKey(), cachedEntity.getKey());
     }
 	
+	@Test
+	public void testGenerationCounters() {
+		((CacheManagerImpl) cacheManager).setGenerationCounters(true);
+		try {
+			SimpleQuery query = entityManager.createQuery(CacheableEntity.class)
+				.equal(Attrs.NAME, "foo")
+				.withCacheSeconds("foo", 100);
+			String cacheKey = query.getCacheKey();
+			assertTrue(cacheKey, cacheKey.contains(",gen="));
+			assertEquals(2, query.asList().size());
+			assertEquals(cacheKey, query.getCacheKey());
+			
+			// a put of the same kind changes the cache key
+			entityManager.put(CacheableEntity.create());
+			assertFalse(cacheKey.equals(query.getCacheKey()));
+			assertEquals(3, query.asList().size());
+			
+			// a delete too
+			cacheKey = query.getCacheKey();
+			entityManager.delete(cachedEntity.getKey());
+			assertFalse(cacheKey.equals(query.getCacheKey()));
+			assertEquals(2, query.asList().size());
+			
+			// inside a transaction the counter is incremented on write and again after commit
+			cacheKey = query.getCacheKey();
+			Transaction tx = entityManager.beginTransaction();
+			entityManager.put(tx, CacheableEntity.create());
+			assertFalse(cacheKey.equals(query.getCacheKey()));
+			cacheKey = query.getCacheKey();
+			tx.commit();
+			assertFalse(cacheKey.equals(query.getCacheKey()));
+		} finally {
+			((CacheManagerImpl) cacheManager).setGenerationCounters(false);
+		}
+	}
+	
+	@Test
+	public void testCountCache() {
+		SimpleQuery query = entityManager.createQuery(CacheableEntity.class)
+			.equal(Attrs.NAME, "foo")
+			.withCacheSeconds("foo", 100);
+		assertEquals(query.getCacheKey().replace("qdata", "qcount"), query.getCountCacheKey());
+		assertEquals(2, query.count());
+		
+		// entities stored directly in the datastore are not counted until the cache expires
+		datastoreService.put(entityManager.getClassMetadata(CacheableEntity.class).javaToDatastore(null, CacheableEntity.create()));
+		assertEquals(2, query.count());
+		
+		// asList() stores the count of unbounded queries
+		query = query.clone().withCacheSeconds("bar", 100);
+		assertEquals(3, query.asList().size());
+		assertEquals(Integer.valueOf(3), cacheManager.get("bar", query.getCountCacheKey()));
+		assertNull(cacheManager.get("bar", query.clone().withLimit(1).getCountCacheKey()));
+	}
+	
+	@Test
+	public void testCachedQueryWithMissingEntities() {
+		List<CacheableEntity> entities = Lists.newArrayList();
+		for (int i = 0; i < 6; i++) {
+			CacheableEntity entity = CacheableEntity.create();
+			entity.setName("bar");
+			entities.add(entity);
+		}
+		entityManager.put(entities);
+		SimpleQuery query = entityManager.createQuery(CacheableEntity.class)
+			.equal(Attrs.NAME, "bar")
+			.withCacheSeconds("foo", 100);
+		assertEquals(6, query.asList().size());
+		
+		// a few missing entities are skipped, but the cached result is not modified
+		entityManager.delete(entities.get(0).getKey());
+		List<CacheableEntity> result = query.asList();
+		assertEquals(5, result.size());
+		assertFalse(result.contains(null));
+		assertEquals(6, ((List) cacheManager.get("foo", query.getCacheKey())).size());
+		
+		// too many missing entities execute the query again
+		entityManager.delete(entities.get(1).getKey(), entities.get(2).getKey());
+		CacheableEntity added = CacheableEntity.create();
+		added.setName("bar");
+		entityManager.put(added);
+		result = query.asList();
+		assertEquals(4, result.size());
+		assertFalse(result.contains(null));
+		assertEquals(4, ((List) cacheManager.get("foo", query.getCacheKey())).size());
+	}
+	
+	@Test
+	public void testTransactionContext() {
+		Key key = cachedEntity.getKey();
+		
+		// repeated reads and writes are served from the transaction context
+		Transaction tx = entityManager.beginTransaction();
+		CacheableEntity e1 = entityManager.get(tx, key);
+		e1.setName("modified");
+		entityManager.put(tx, e1);
+		assertNull(cacheManager.get(metadata, key));
+		assertEquals("modified", entityManager.<CacheableEntity>get(tx, key).getName());
+		assertEquals("modified", entityManager.<CacheableEntity>get(tx, ImmutableList.of(key)).get(key).getName());
+		
+		// published on commit
+		transactionManager.commit();
+		assertEquals("modified", cacheManager.<CacheableEntity>get(metadata, key).getName());
+		
+		// discarded on rollback
+		tx = entityManager.beginTransaction();
+		CacheableEntity e2 = entityManager.get(tx, key);
+		e2.setName("rolled back");
+		entityManager.put(tx, e2);
+		transactionManager.rollback();
+		assertNull(cacheManager.get(metadata, key));
+		assertEquals("modified", entityManager.<CacheableEntity>get(key).getName());
+	}
+	
+	@Test
+	public void testKeysThenGet() {
+		SimpleQuery query = entityManager.createQuery(CacheableEntity.class)
+			.equal(Attrs.NAME, "foo")
+			.sortAsc("__key__");
+		
+		// cacheable classes reuse the cached instances
+		List<CacheableEntity> result = query.asList();
+		assertEquals(2, result.size());
+		assertSame(cachedEntity, result.get(0));
+		
+		result = query.withKeysThenGet(false).asList();
+		assertEquals(2, result.size());
+		assertNotSame(cachedEntity, result.get(0));
+		assertEquals(cachedEntity.getKey(), result.get(0).getKey());
+	}
+	
 	private void cacheSeconds(int cacheSeconds, boolean withLevel1) {
 		if (withLevel1) {
 			Level1Cache.setCacheInstance();
@@ -326,6 +695,20 @@ public class CacheTest extends AbstractEntityManagerTest {
 		} 
 	}
 	
+	private static class FakeTicker extends Ticker {
+		
+		private long nanos;
+		
+		@Override
+		public long read() {
+			return nanos;
+		}
+		
+		public void advance(long time, TimeUnit unit) {
+			nanos += unit.toNanos(time);
+		}
+	}
+	
 	private void assertInCache(CacheableEntity entity) {
 		assertNotNull(cacheManager.get(metadata, entity.getKey()));
 	}
@@ -333,8 +716,9 @@ public class CacheTest extends AbstractEntityManagerTest {
 		assertNull(cacheManager.get(metadata, entity.getKey()));
 	}
 	
-	private void assertCacheKeys(String expectedDataKey, SimpleQuery query) throws Exception {
-		assertEquals(expectedDataKey, query.getCacheKey());
+	private String assertCacheKeys(SimpleQuery query1, SimpleQuery query2) throws Exception {
+		assertEquals(query1.getCacheKey(), query2.getCacheKey());
+		return query1.getCacheKey();
 	}
 
 }
@@ -3,19 +3,26 @@ package org.simpleds.metadata;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Before;
 import org.junit.Test;
 import org.simpleds.AbstractEntityManagerTest;
 import org.simpleds.annotations.Id;
 import org.simpleds.annotations.Property;
+import org.simpleds.converter.ConverterFactory;
 import org.simpleds.converter.IntegerConverter;
 import org.simpleds.exception.ConfigException;
 import org.simpleds.exception.DuplicateException;
 import org.simpleds.testdb.Attrs;
 import org.simpleds.testdb.Dummy1;
+import org.simpleds.testdb.Embedded1;
+import org.simpleds.testdb.Embedded2;
 import org.simpleds.testdb.Kinds;
 
 import java.util.Date;
+import java.util.List;
 import java.util.Set;
 
 import static org.junit.Assert.*;
@@ -108,6 +115,61 @@ public class ClassMetadataTest extends AbstractEntityManagerTest {
 		assertEquals("foo", entity.getProperty(Attrs.NAME));
 	}
 	
+	@Test
+	public void testPrimitiveProperties() throws Exception {
+		ClassMetadata primitivesMetadata = repository.add(Primitives.class);
+		Primitives primitives = new Primitives();
+		primitives.key = KeyFactory.createKey(primitivesMetadata.getKind(), 1);
+		primitives.l = Long.MAX_VALUE;
+		primitives.i = -5;
+		primitives.b = true;
+		Entity entity = primitivesMetadata.javaToDatastore(null, primitives);
+		assertEquals(Long.MAX_VALUE, entity.getProperty("l"));
+		assertEquals(-5L, entity.getProperty("i"));
+		assertEquals(Boolean.TRUE, entity.getProperty("b"));
+		assertTrue(entity.isUnindexedProperty("i"));
+		
+		Primitives result = primitivesMetadata.datastoreToJava(entity);
+		assertEquals(primitives.key, result.key);
+		assertEquals(Long.MAX_VALUE, result.l);
+		assertEquals(-5, result.i);
+		assertTrue(result.b);
+		
+		// null values use the converter null value
+		entity.setProperty("l", null);
+		entity.setProperty("i", null);
+		entity.removeProperty("b");
+		result = new Primitives();
+		result.b = true;
+		primitivesMetadata.populate(entity, result);
+		assertEquals(0, result.l);
+		assertEquals(0, result.i);
+		assertTrue(result.b);
+	}
+	
+	@Test
+	public void testInstanceFactory() throws Exception {
+		final List<Class<?>> instantiated = Lists.newArrayList();
+		ConverterFactory converterFactory = new ConverterFactory();
+		converterFactory.setObjectMapper(new ObjectMapper());
+		ClassMetadataFactory factory = new ClassMetadataFactory();
+		factory.setConverterFactory(converterFactory);
+		factory.setInstanceFactory(new InstanceFactory() {
+			
+			@Override
+			public <T> T newInstance(Class<T> clazz) {
+				instantiated.add(clazz);
+				return Instantiator.create(clazz, null).newInstance();
+			}
+		});
+		ClassMetadata factoryMetadata = factory.createMetadata(Dummy1.class);
+		Entity entity = new Entity(KeyFactory.createKey(Kinds.DUMMY1, 1));
+		entity.setProperty("i2", 2L);
+		Dummy1 dummy = factoryMetadata.datastoreToJava(entity);
+		assertEquals(Integer.valueOf(2), dummy.getEmbedded().getEmbedded2().i2);
+		assertEquals(ImmutableList.of(Dummy1.class, Embedded1.class, Embedded2.class), instantiated);
+	}
+	
 	@Test(expected=DuplicateException.class)
 	public void testRepeatedKind() throws Exception {
 		repository.add(RepeatedKind.class);
@@ -124,6 +186,19 @@ public class ClassMetadataTest extends AbstractEntityManagerTest {
 		private Key key;
 	}
 	
+	@org.simpleds.annotations.Entity("pr")
+	static class Primitives {
+		@Id
+		private Key key;
+		
+		private long l;
+		
+		@Property(unindexed=true)
+		private int i;
+		
+		private boolean b;
+	}
+	
 	static class RepeatedProperty {
 		@Id
 		private Key key;
@@ -1,12 +1,16 @@
 package org.simpleds.metadata;
 
+import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Before;
 import org.junit.Test;
 import org.simpleds.AbstractEntityManagerTest;
+import org.simpleds.converter.ConverterFactory;
 import org.simpleds.testdb.Attrs;
 import org.simpleds.testdb.Dummy1;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
 public class SinglePropertyMetadataTest extends AbstractEntityManagerTest {
@@ -14,6 +18,31 @@ public class SinglePropertyMetadataTest extends AbstractEntityManagerTest {
     @Test
     public void testSetValue() {
         ClassMetadata cm = repository.get(Dummy1.class);
+        assertNull(((SinglePropertyMetadata) cm.getProperty(Attrs.NAME)).getAccessor());
+        assertSetValue(cm);
+    }
+
+    @Test
+    public void testSetValueWithGeneratedAccessors() {
+        ConverterFactory converterFactory = new ConverterFactory();
+        converterFactory.setObjectMapper(new ObjectMapper());
+        ClassMetadataFactory factory = new ClassMetadataFactory();
+        factory.setConverterFactory(converterFactory);
+        factory.setGenerateAccessors(true);
+        ClassMetadata cm = factory.createMetadata(Dummy1.class);
+        assertNotNull(((SinglePropertyMetadata) cm.getProperty(Attrs.NAME)).getAccessor());
+        assertNotNull(((SinglePropertyMetadata) cm.getProperty(Attrs.E_VALUE)).getAccessor());
+        assertSetValue(cm);
+
+        // embedded properties
+        PropertyMetadata i1 = cm.getProperty("i1");
+        Dummy1 d = new Dummy1();
+        i1.setValue(d, 5);
+        assertEquals(5, i1.getValue(d));
+        assertEquals(5, d.getEmbedded().getI1());
+    }
+
+    private void assertSetValue(ClassMetadata cm) {
         SinglePropertyMetadata<String, String> metadata = (SinglePropertyMetadata<String, String>) cm.<String, String>getProperty(Attrs.NAME);
 
         // ok
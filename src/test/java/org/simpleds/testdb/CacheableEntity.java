@@ -11,7 +11,7 @@ import org.simpleds.annotations.Property;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 
-@Cacheable(120)
+@Cacheable(value=120, sharedSeconds=60, negativeSeconds=60)
 @Entity(Kinds.CACHEABLE_ENTITY)
 public class CacheableEntity {
 
@@ -1,6 +1,12 @@
 package org.simpleds.tx;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 import org.simpleds.AbstractEntityManagerTest;
@@ -39,4 +45,61 @@ public class TransactionManagerTest extends AbstractEntityManagerTest {
 		assertEquals(1, entityManager.count(entityManager.createQuery(Dummy1.class)));
 	}
 	
+	@Test
+	public void testRunnerRetry() throws Exception {
+		TransactionRunner runner = new TransactionRunner();
+		runner.setTransactionManager(transactionManager);
+		final AtomicInteger attempts = new AtomicInteger();
+		String result = runner.run(2, 1, new Callable<String>() {
+			@Override
+			public String call() {
+				entityManager.put(datastoreService.beginTransaction(), Dummy1.create());
+				if (attempts.incrementAndGet() == 1) {
+					throw new ConcurrentModificationException();
+				}
+				return "foo";
+			}
+		});
+		assertEquals("foo", result);
+		assertEquals(1, entityManager.count(entityManager.createQuery(Dummy1.class)));
+		assertEquals(2, runner.getExecutionCount());
+		assertEquals(1, runner.getRetryCount());
+		assertEquals(0, runner.getExhaustedCount());
+		assertTrue(datastoreService.getActiveTransactions().isEmpty());
+		
+		// exhaust all retries
+		try {
+			runner.run(1, 1, new Callable<Void>() {
+				@Override
+				public Void call() {
+					entityManager.put(datastoreService.beginTransaction(), Dummy1.create());
+					throw new RuntimeException(new ConcurrentModificationException());
+				}
+			});
+			fail("Exception not thrown");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof ConcurrentModificationException);
+		}
+		assertEquals(4, runner.getExecutionCount());
+		assertEquals(2, runner.getRetryCount());
+		assertEquals(1, runner.getExhaustedCount());
+		
+		// other exceptions are not retried
+		try {
+			runner.run(3, 1, new Callable<Void>() {
+				@Override
+				public Void call() {
+					entityManager.put(datastoreService.beginTransaction(), Dummy1.create());
+					throw new SecurityException();
+				}
+			});
+			fail("Exception not thrown");
+		} catch (SecurityException e) {
+			// expected
+		}
+		assertEquals(5, runner.getExecutionCount());
+		assertEquals(1, entityManager.count(entityManager.createQuery(Dummy1.class)));
+		assertTrue(datastoreService.getActiveTransactions().isEmpty());
+	}
+	
 }